@@ -0,0 +1,105 @@
+package solidstack.httpclient.nio;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import solidstack.nio.SocketInputStream;
+import solidstack.nio.SocketOutputStream;
+
+
+/**
+ * Body of a response with a Content-Length. Can be moved to another socket without copying, see
+ * {@link #transferTo(SocketOutputStream)}.
+ *
+ * @author Ren M. de Bloois
+ */
+public class BodyInputStream extends InputStream
+{
+	private SocketInputStream in;
+	private long remaining;
+
+	public BodyInputStream( SocketInputStream in, long length )
+	{
+		this.in = in;
+		this.remaining = length;
+	}
+
+	@Override
+	public int read() throws IOException
+	{
+		if( this.remaining <= 0 )
+			return -1;
+		int result = this.in.read();
+		if( result >= 0 )
+			this.remaining--;
+		return result;
+	}
+
+	@Override
+	public int read( byte[] b, int off, int len ) throws IOException
+	{
+		if( this.remaining <= 0 )
+			return -1;
+		if( len > this.remaining )
+			len = (int)this.remaining;
+		int result = this.in.read( b, off, len );
+		if( result > 0 )
+			this.remaining -= result;
+		return result;
+	}
+
+	/**
+	 * Reads bytes into the given buffer, see {@link SocketInputStream#read(ByteBuffer)}.
+	 *
+	 * @param dst The buffer to read into.
+	 * @return The number of bytes read, -1 at the end of the body.
+	 * @throws IOException When reading fails.
+	 */
+	public int read( ByteBuffer dst ) throws IOException
+	{
+		if( this.remaining <= 0 )
+			return -1;
+		int limit = dst.limit();
+		if( dst.remaining() > this.remaining )
+			dst.limit( dst.position() + (int)this.remaining );
+		try
+		{
+			int result = this.in.read( dst );
+			if( result > 0 )
+				this.remaining -= result;
+			return result;
+		}
+		finally
+		{
+			dst.limit( limit );
+		}
+	}
+
+	@Override
+	public int available() throws IOException
+	{
+		return (int)Math.min( this.in.available(), this.remaining );
+	}
+
+	/**
+	 * @return The number of bytes of the body that have not been read yet.
+	 */
+	public long getRemaining()
+	{
+		return this.remaining;
+	}
+
+	/**
+	 * Moves the rest of the body to another socket, see {@link SocketInputStream#transferTo(SocketOutputStream, long)}.
+	 *
+	 * @param out The output stream of the other socket.
+	 * @throws IOException When the transfer fails.
+	 */
+	public void transferTo( SocketOutputStream out ) throws IOException
+	{
+		long count = this.remaining;
+		this.remaining = 0;
+		this.in.transferTo( out, count );
+	}
+}
@@ -12,7 +12,6 @@ import solidstack.httpclient.ChunkedInputStream;
 import solidstack.httpclient.Request;
 import solidstack.httpclient.Response;
 import solidstack.httpclient.ResponseProcessor;
-import solidstack.httpserver.HttpBodyInputStream;
 import solidstack.httpserver.HttpException;
 import solidstack.httpserver.HttpHeaderTokenizer;
 import solidstack.httpserver.Token;
@@ -21,9 +20,17 @@ import solidstack.nio.ClientSocket;
 import solidstack.nio.RequestWriter;
 import solidstack.nio.ResponseReader;
 import solidstack.nio.Socket;
+import solidstack.nio.SocketInputStream;
 import solidstack.nio.SocketMachine;
+import solidstack.nio.SocketOptions;
+import solidstack.nio.Timeout;
 
 
+/**
+ * HTTP client on a {@link SocketMachine}. The requests are written and the responses are read with the blocking socket
+ * streams, the response is given to the {@link ResponseProcessor} as a stream. The event mode of
+ * {@link ClientSocket#setHandler(solidstack.nio.SocketHandler)} can not be used for this client.
+ */
 public class Client
 {
 	SocketMachine machine;
@@ -43,6 +50,15 @@ public class Client
 		this.socket.setMaxConnections( maxConnections );
 	}
 
+	/**
+	 * @return The options for the new connections, like auto batching and TCP_NODELAY, which can be changed. See
+	 *         {@link ClientSocket#getOptions()}.
+	 */
+	public SocketOptions getOptions()
+	{
+		return this.socket.getOptions();
+	}
+
 	public int[] getCounts()
 	{
 		return this.socket.getCounts();
@@ -63,17 +79,23 @@ public class Client
 				MyResponseReader reader = new MyResponseReader( processor );
 				socket.setReader( reader );
 
-				Client.this.machine.addTimeout( reader, socket, System.currentTimeMillis() + 10000 );
+				reader.timeout = socket.getMachine().addTimeout( reader, socket, System.currentTimeMillis() + 10000 );
 
 				sendRequest( request, socket );
 			}
+
+			@Override
+			public void failed( IOException e )
+			{
+				processor.timeout(); // No response will come
+			}
 		} );
 	}
 
-	// TODO Add to timeout manager
 	public class MyResponseReader implements ResponseReader
 	{
 		final private ResponseProcessor processor;
+		Timeout timeout;
 
 		public MyResponseReader( ResponseProcessor processor )
 		{
@@ -82,15 +104,15 @@ public class Client
 
 		public void incoming( Socket socket ) throws IOException
 		{
+			// The response is coming in, when the timeout has already fired the socket is being closed
+			if( !socket.getMachine().removeTimeout( this.timeout ) )
+				return;
+
 			Response response = receiveResponse( socket.getInputStream() );
 			InputStream in = response.getInputStream();
 			this.processor.process( response );
 //			this.processor = null;
 			drain( in, null );
-
-			// TODO Is this the right spot? How to coordinate this with the timeout event?
-			// TODO Maybe just timeout the socket and remove the timeout in the release.
-			Client.this.machine.removeTimeout( this );
 		}
 
 		public void timeout( Socket socket ) throws IOException
@@ -137,7 +159,7 @@ public class Client
 		}
 	}
 
-	Response receiveResponse( InputStream in )
+	Response receiveResponse( SocketInputStream in )
 	{
 		Response result = new Response();
 
@@ -165,8 +187,8 @@ public class Client
 		String length = result.getHeader( "Content-Length" );
 		if( length != null )
 		{
-			int l = Integer.parseInt( length );
-			result.setInputStream( new HttpBodyInputStream( in, l ) );
+			long l = Long.parseLong( length );
+			result.setInputStream( new BodyInputStream( in, l ) );
 		}
 		else
 		{
@@ -212,11 +234,20 @@ public class Client
 		try
 		{
 			int i = in.read();
-			while( i >= 0 )
+			if( i < 0 )
+				return; // Usually the processor has read everything
+			if( out != null )
+				out.print( (char)i );
+
+			// Large reads go directly from the channel into the array
+			byte[] buffer = new byte[ 65536 ];
+			int len = in.read( buffer );
+			while( len >= 0 )
 			{
 				if( out != null )
-					out.print( (char)i );
-				i = in.read();
+					for( int j = 0; j < len; j++ )
+						out.print( (char)( buffer[ j ] & 0xFF ) );
+				len = in.read( buffer );
 			}
 		}
 		catch( IOException e )
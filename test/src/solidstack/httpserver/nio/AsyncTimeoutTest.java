@@ -0,0 +1,214 @@
+package solidstack.httpserver.nio;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+
+import solidstack.httpserver.ApplicationContext;
+import solidstack.httpserver.RequestContext;
+import solidstack.httpserver.Response;
+import solidstack.httpserver.Servlet;
+import solidstack.io.FatalIOException;
+import solidstack.nio.SocketMachine;
+
+
+/**
+ * Checks that nothing the application writes after its asynchronous request has timed out reaches the connection. Run
+ * it as a main class, it ends with an exception when a check fails.
+ *
+ * @author Ren M. de Bloois
+ */
+public class AsyncTimeoutTest
+{
+	static private final int PORT = 8010;
+
+	static public void main( String[] args ) throws Exception
+	{
+		final CountDownLatch late = new CountDownLatch( 2 );
+
+		ApplicationContext application = new ApplicationContext();
+		application.registerServlet( "/late", new Servlet()
+		{
+			public void call( RequestContext context )
+			{
+				// Writes the whole response after the timeout
+				respondLater( context, late, false );
+			}
+		} );
+		application.registerServlet( "/partial", new Servlet()
+		{
+			public void call( RequestContext context )
+			{
+				// Writes part of the response before the timeout, the rest after it
+				respondLater( context, late, true );
+			}
+		} );
+		application.registerServlet( "/next", new Servlet()
+		{
+			public void call( RequestContext context )
+			{
+				context.getResponse().setContentType( "text/plain", null );
+				write( context.getResponse(), "next", false );
+			}
+		} );
+
+		SocketMachine machine = new SocketMachine();
+		machine.start();
+		try
+		{
+			Server server = new Server( machine, PORT );
+			server.setApplication( application );
+			server.setMaxConnections( 10 );
+			server.setAsyncTimeout( 100 );
+
+			java.net.Socket client = new java.net.Socket( "localhost", PORT );
+			try
+			{
+				client.getOutputStream().write( "GET /late HTTP/1.1\r\nHost: localhost\r\n\r\nGET /next HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes( "ISO-8859-1" ) );
+				InputStream in = client.getInputStream();
+				check( readResponse( in ), "HTTP/1.1 503 Service Unavailable", "" );
+				check( readResponse( in ), "HTTP/1.1 200 OK", "next" );
+
+				late.countDown();
+				late.await(); // The late response has been written and finished
+
+				// Nothing may follow the response of the pipelined request
+				client.setSoTimeout( 500 );
+				try
+				{
+					int b = in.read();
+					throw new IllegalStateException( "Unexpected " + ( b < 0 ? "close" : "byte " + (char)b ) );
+				}
+				catch( SocketTimeoutException e )
+				{
+					// Expected
+				}
+				if( !Arrays.equals( server.getAsyncCounts(), new int[] { 1, 1 } ) )
+					throw new IllegalStateException( "Unexpected async counts " + Arrays.toString( server.getAsyncCounts() ) );
+			}
+			finally
+			{
+				client.close();
+			}
+
+			client = new java.net.Socket( "localhost", PORT );
+			try
+			{
+				client.getOutputStream().write( "GET /partial HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes( "ISO-8859-1" ) );
+				client.setSoTimeout( 5000 );
+				InputStream in = client.getInputStream();
+				ByteArrayOutputStream received = new ByteArrayOutputStream();
+				for( int b = in.read(); b >= 0; b = in.read() ) // Ends when the server closes the connection
+					received.write( b );
+				String response = received.toString( "ISO-8859-1" );
+				if( !response.startsWith( "HTTP/1.1 200 OK\r\n" ) || !response.contains( "early" ) || response.contains( "late" ) )
+					throw new IllegalStateException( "Unexpected response: " + response );
+			}
+			finally
+			{
+				client.close();
+			}
+		}
+		finally
+		{
+			machine.shutdown();
+		}
+
+		System.out.println( "All checks passed" );
+	}
+
+	static void respondLater( final RequestContext context, final CountDownLatch late, final boolean partial )
+	{
+		context.setAsync( true );
+
+		final Response response = context.getResponse();
+		if( partial )
+		{
+			response.setContentType( "text/plain", null );
+			write( response, "early", true ); // Commits the response
+		}
+
+		Thread thread = new Thread()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					Thread.sleep( 300 );
+					if( !partial )
+					{
+						boolean committed;
+						try
+						{
+							( (NioResponse)response ).commit( 4 );
+							committed = true;
+						}
+						catch( IllegalStateException e )
+						{
+							committed = false;
+						}
+						if( committed )
+							throw new IllegalStateException( "Commit after the timeout should fail" );
+						response.setContentType( "text/plain", null );
+					}
+					write( response, "late", true );
+					response.finish();
+				}
+				catch( Exception e )
+				{
+					e.printStackTrace( System.out );
+					System.exit( 1 );
+				}
+				finally
+				{
+					late.countDown();
+				}
+			}
+		};
+		thread.start();
+	}
+
+	static void write( Response response, String s, boolean flush )
+	{
+		try
+		{
+			response.getOutputStream().write( s.getBytes( "ISO-8859-1" ) );
+			if( flush )
+				response.getOutputStream().flush();
+		}
+		catch( IOException e )
+		{
+			throw new FatalIOException( e );
+		}
+	}
+
+	static String readResponse( InputStream in ) throws IOException
+	{
+		StringBuilder head = new StringBuilder();
+		while( !head.toString().endsWith( "\r\n\r\n" ) )
+		{
+			int b = in.read();
+			if( b < 0 )
+				throw new IllegalStateException( "Connection closed after: " + head );
+			head.append( (char)b );
+		}
+		int length = 0;
+		for( String line : head.toString().split( "\r\n" ) )
+			if( line.regionMatches( true, 0, "Content-Length:", 0, 15 ) )
+				length = Integer.parseInt( line.substring( 15 ).trim() );
+		StringBuilder body = new StringBuilder();
+		for( int i = 0; i < length; i++ )
+			body.append( (char)in.read() );
+		return head.substring( 0, head.indexOf( "\r\n" ) ) + "\n" + body;
+	}
+
+	static void check( String response, String status, String body )
+	{
+		if( !response.equals( status + "\n" + body ) )
+			throw new IllegalStateException( "Expected " + status + " with body '" + body + "', got: " + response );
+	}
+}
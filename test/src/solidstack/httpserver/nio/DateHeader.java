@@ -0,0 +1,75 @@
+package solidstack.httpserver.nio;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import solidstack.nio.SocketMachine;
+import solidstack.nio.Timeout;
+
+
+/**
+ * The Date header line of the responses, pre-encoded. It is refreshed every second by a timeout on the selector thread
+ * of the {@link SocketMachine}, so responses only need to copy it.
+ *
+ * @author Ren M. de Bloois
+ */
+class DateHeader
+{
+	private SocketMachine machine;
+	private SimpleDateFormat format; // Only used by the selector thread, after the constructor
+	private volatile byte[] line;
+	private volatile Timeout refresh;
+	private volatile boolean stopped;
+
+	DateHeader( SocketMachine machine )
+	{
+		this.machine = machine;
+		this.format = new SimpleDateFormat( "EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US );
+		this.format.setTimeZone( TimeZone.getTimeZone( "GMT" ) );
+		refresh();
+	}
+
+	/**
+	 * @return The Date header including the line end.
+	 */
+	byte[] get()
+	{
+		return this.line;
+	}
+
+	void refresh()
+	{
+		long now = System.currentTimeMillis();
+		this.line = ResponseHeaders.encode( "Date: " + this.format.format( new Date( now ) ) + "\r\n" );
+
+		if( this.stopped )
+			return;
+
+		// Just after the start of the next second
+		Timeout timeout = new Timeout( now - now % 1000 + 1000 )
+		{
+			@Override
+			protected void fire()
+			{
+				refresh();
+			}
+		};
+		this.refresh = timeout;
+		this.machine.addTimeout( timeout );
+		if( this.stopped ) // Stopped in the mean time, stop() may have missed this timeout
+			this.machine.removeTimeout( timeout );
+	}
+
+	/**
+	 * Stops the refresh. The header keeps its last value.
+	 */
+	void stop()
+	{
+		this.stopped = true;
+		Timeout timeout = this.refresh;
+		if( timeout != null )
+			this.machine.removeTimeout( timeout );
+	}
+}
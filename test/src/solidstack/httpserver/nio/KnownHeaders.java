@@ -0,0 +1,121 @@
+package solidstack.httpserver.nio;
+
+
+/**
+ * Table of the request headers that the server knows. The names are matched case insensitive against the bytes of the
+ * request, without creating a String.
+ *
+ * @author Ren M. de Bloois
+ */
+public class KnownHeaders
+{
+	static public final int UNKNOWN = -1;
+	static public final int ACCEPT = 0;
+	static public final int ACCEPT_CHARSET = 1;
+	static public final int ACCEPT_ENCODING = 2;
+	static public final int ACCEPT_LANGUAGE = 3;
+	static public final int AUTHORIZATION = 4;
+	static public final int CACHE_CONTROL = 5;
+	static public final int CONNECTION = 6;
+	static public final int CONTENT_LENGTH = 7;
+	static public final int CONTENT_TYPE = 8;
+	static public final int COOKIE = 9;
+	static public final int EXPECT = 10;
+	static public final int HOST = 11;
+	static public final int IF_MODIFIED_SINCE = 12;
+	static public final int IF_NONE_MATCH = 13;
+	static public final int PRAGMA = 14;
+	static public final int REFERER = 15;
+	static public final int TRANSFER_ENCODING = 16;
+	static public final int UPGRADE = 17;
+	static public final int USER_AGENT = 18;
+	static public final int X_FORWARDED_FOR = 19;
+
+	static private final String[] NAMES = {
+		"Accept", "Accept-Charset", "Accept-Encoding", "Accept-Language", "Authorization", "Cache-Control", "Connection",
+		"Content-Length", "Content-Type", "Cookie", "Expect", "Host", "If-Modified-Since", "If-None-Match", "Pragma",
+		"Referer", "Transfer-Encoding", "Upgrade", "User-Agent", "X-Forwarded-For"
+	};
+
+	static private final byte[][] LOWER = new byte[ NAMES.length ][];
+	static private final int[][] BY_LENGTH; // The headers for each length of the name
+
+	static
+	{
+		int max = 0;
+		for( int i = 0; i < NAMES.length; i++ )
+		{
+			LOWER[ i ] = NAMES[ i ].toLowerCase().getBytes();
+			max = Math.max( max, LOWER[ i ].length );
+		}
+		BY_LENGTH = new int[ max + 1 ][];
+		for( int length = 0; length <= max; length++ )
+		{
+			int count = 0;
+			for( byte[] name : LOWER )
+				if( name.length == length )
+					count++;
+			BY_LENGTH[ length ] = new int[ count ];
+			count = 0;
+			for( int i = 0; i < LOWER.length; i++ )
+				if( LOWER[ i ].length == length )
+					BY_LENGTH[ length ][ count++ ] = i;
+		}
+	}
+
+	private KnownHeaders()
+	{
+	}
+
+	/**
+	 * @return The number of known headers.
+	 */
+	static public int size()
+	{
+		return NAMES.length;
+	}
+
+	/**
+	 * @param header The known header.
+	 * @return The name of the known header as it is usually written.
+	 */
+	static public String getName( int header )
+	{
+		return NAMES[ header ];
+	}
+
+	/**
+	 * Looks up a header name, case insensitive.
+	 *
+	 * @param data The bytes that contain the name.
+	 * @param start The start of the name.
+	 * @param end The end of the name.
+	 * @return The known header, {@link #UNKNOWN} if the name is not known.
+	 */
+	static public int lookup( byte[] data, int start, int end )
+	{
+		int length = end - start;
+		if( length >= BY_LENGTH.length )
+			return UNKNOWN;
+		for( int header : BY_LENGTH[ length ] )
+			if( equalsLower( data, start, LOWER[ header ] ) )
+				return header;
+		return UNKNOWN;
+	}
+
+	/**
+	 * Compares bytes case insensitive with a lower case ASCII string.
+	 */
+	static boolean equalsLower( byte[] data, int start, byte[] lower )
+	{
+		for( int i = 0; i < lower.length; i++ )
+		{
+			byte b = data[ start + i ];
+			if( b >= 'A' && b <= 'Z' )
+				b += 'a' - 'A';
+			if( b != lower[ i ] )
+				return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,167 @@
+package solidstack.httpserver.nio;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import solidstack.httpclient.nio.BodyInputStream;
+import solidstack.httpserver.Request;
+import solidstack.httpserver.UrlEncodedParser;
+
+
+/**
+ * Request that keeps the query and the body as they came in. The parameters are only decoded on the first call to
+ * {@link #getParameter(String)}, and a form body is only read at that moment. What is left of the body is drained when
+ * the request is finished.
+ *
+ * <p>Only the task of the socket may read from the socket, see {@link solidstack.nio.SocketInputStream}. So when the
+ * request continues asynchronously, a form body is decoded before the task ends, and reading the body after that
+ * fails, see {@link #endTask()}.</p>
+ *
+ * @author Ren M. de Bloois
+ */
+public class NioRequest extends Request
+{
+	private String parameters;
+	private BodyInputStream body;
+	private long length;
+	private boolean form;
+	private volatile boolean decoded;
+	private volatile boolean taskEnded;
+
+	/**
+	 * @param parameters The query, or null.
+	 */
+	public void setParameters( String parameters )
+	{
+		this.parameters = parameters;
+	}
+
+	/**
+	 * @param body The body of the request.
+	 * @param form True when the body contains url encoded parameters.
+	 */
+	public void setBody( BodyInputStream body, boolean form )
+	{
+		this.body = body;
+		this.length = body.getRemaining();
+		this.form = form;
+	}
+
+	/**
+	 * @return The body of the request, null when the request has no body.
+	 */
+	public InputStream getInputStream()
+	{
+		if( this.body == null )
+			return null;
+		return new RequestBody();
+	}
+
+	@Override
+	public String getParameter( String name )
+	{
+		if( !this.decoded )
+			decode();
+		return super.getParameter( name );
+	}
+
+	/**
+	 * Called by the server on the task of the socket when the request continues asynchronously, just before the task
+	 * ends. A form body that has not been read yet is decoded now. After this the body can not be read anymore.
+	 */
+	void endTask()
+	{
+		if( this.form && !this.decoded )
+			decode();
+		this.taskEnded = true;
+	}
+
+	/**
+	 * Skips what is left of the body, so that the next request on the connection can be read.
+	 *
+	 * @throws IOException When reading fails.
+	 */
+	public void drain() throws IOException
+	{
+		if( this.body == null )
+			return;
+		while( this.body.getRemaining() > 0 )
+			if( this.body.skip( this.body.getRemaining() ) <= 0 )
+				break; // Connection closed
+	}
+
+	// Synchronized, the task of the socket decodes a form body when the request continues asynchronously
+	synchronized private void decode()
+	{
+		if( this.decoded )
+			return;
+
+		String parameters = this.parameters;
+		if( parameters != null )
+		{
+			int start = 0;
+			while( start < parameters.length() )
+			{
+				int end = parameters.indexOf( '&', start );
+				if( end < 0 )
+					end = parameters.length();
+				if( end > start )
+				{
+					int pos = parameters.indexOf( '=', start );
+					if( pos >= 0 && pos < end )
+						addParameter( parameters.substring( start, pos ), parameters.substring( pos + 1, end ) );
+					else
+						addParameter( parameters.substring( start, end ), null );
+				}
+				start = end + 1;
+			}
+		}
+
+		// Not when the servlet has already started reading the body itself
+		if( this.form && this.body.getRemaining() == this.length )
+		{
+			UrlEncodedParser parser = new UrlEncodedParser( this.body, (int)this.length );
+			String parameter = parser.getParameter();
+			while( parameter != null )
+			{
+				String value = parser.getValue();
+				addParameter( parameter, value );
+				parameter = parser.getParameter();
+			}
+		}
+
+		this.decoded = true;
+	}
+
+	private void checkTask()
+	{
+		if( this.taskEnded )
+			throw new IllegalStateException( "The body can only be read before the request continues asynchronously" );
+	}
+
+
+	// The body as given to the application, it can not be read after the task of the socket has ended
+	private class RequestBody extends InputStream
+	{
+		@Override
+		public int read() throws IOException
+		{
+			checkTask();
+			return NioRequest.this.body.read();
+		}
+
+		@Override
+		public int read( byte[] b, int off, int len ) throws IOException
+		{
+			checkTask();
+			return NioRequest.this.body.read( b, off, len );
+		}
+
+		@Override
+		public int available() throws IOException
+		{
+			checkTask();
+			return NioRequest.this.body.available();
+		}
+	}
+}
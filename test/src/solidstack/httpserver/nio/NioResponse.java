@@ -0,0 +1,358 @@
+package solidstack.httpserver.nio;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import solidstack.httpserver.Request;
+import solidstack.httpserver.Response;
+import solidstack.io.FatalIOException;
+import solidstack.nio.Socket;
+import solidstack.nio.SocketOutputStream;
+import solidstack.nio.Timeout;
+
+
+/**
+ * Response that knows its socket, so that it can send files without copying them. The header is written from
+ * pre-encoded status lines, header names and Date, see {@link #writeHeader(OutputStream)}.
+ *
+ * @author Ren M. de Bloois
+ */
+public class NioResponse extends Response
+{
+	static private final int RUNNING = 0;
+	static private final int SUSPENDED = 1;
+	static private final int FINISHED = 2;
+	static private final int EXPIRED = 3;
+
+	static private final byte[] CONTENT_LENGTH_0 = ResponseHeaders.encode( "Content-Length: 0\r\n" );
+
+	private Request request;
+	private Socket socket;
+	private DateHeader date;
+	private AtomicInteger state = new AtomicInteger( RUNNING );
+	private volatile Timeout timeout;
+	private ResponseSink sink;
+
+	private byte[] value = new byte[ 64 ]; // To encode the header values in
+
+	public NioResponse( Request request, OutputStream out, Socket socket )
+	{
+		this( request, out, socket, null );
+	}
+
+	NioResponse( Request request, OutputStream out, Socket socket, DateHeader date )
+	{
+		this( request, new ResponseSink( out ), socket, date );
+	}
+
+	private NioResponse( Request request, ResponseSink sink, Socket socket, DateHeader date )
+	{
+		super( request, sink );
+		this.sink = sink;
+		this.request = request;
+		this.socket = socket;
+		this.date = date;
+	}
+
+	public Socket getSocket()
+	{
+		return this.socket;
+	}
+
+	/**
+	 * Suspends the socket till this response is finished, see {@link Socket#suspend()}. Called by the server when the
+	 * request is handled asynchronously.
+	 *
+	 * @return False when the response was already finished.
+	 */
+	boolean suspend()
+	{
+		this.socket.suspend();
+		if( this.state.compareAndSet( RUNNING, SUSPENDED ) )
+			return true;
+		this.socket.resume(); // Already finished
+		return false;
+	}
+
+	/**
+	 * @param timeout The deadline of the asynchronous request, cancelled when the response is finished.
+	 */
+	void setTimeout( Timeout timeout )
+	{
+		this.timeout = timeout;
+		if( this.state.get() != SUSPENDED )
+			this.socket.getMachine().removeTimeout( timeout ); // Finished in the mean time
+	}
+
+	/**
+	 * Answers the suspended request with the given status, when the application did not finish the response in time.
+	 * When part of the response has already been written the socket is closed. The answer is written directly to the
+	 * socket, not through this response which may still be in use by the application. After this everything the
+	 * application writes to the response is discarded, and a later {@link #finish()} or {@link #commit(long)} is
+	 * ignored or fails.
+	 *
+	 * @return False when the response was finished in the mean time.
+	 */
+	boolean expire( int code, String message )
+	{
+		if( !this.state.compareAndSet( SUSPENDED, EXPIRED ) )
+			return false;
+
+		ResponseSink sink = this.sink;
+		sink.lock.lock(); // Waits for a write of the application that is in progress
+		try
+		{
+			if( sink.written )
+				this.socket.close(); // Halfway the response, the connection can not be used anymore
+			else
+			{
+				OutputStream out = sink.out;
+				out.write( ResponseHeaders.getStatusLine( code, message ) );
+				if( this.date != null )
+					out.write( this.date.get() );
+				out.write( CONTENT_LENGTH_0 );
+				if( this.request.isConnectionClose() )
+					out.write( ResponseHeaders.CONNECTION_CLOSE );
+				out.write( ResponseHeaders.CRLF );
+				if( this.request.isConnectionClose() )
+					this.socket.getOutputStream().close(); // Also writes what auto batching held back
+				else
+					out.flush();
+			}
+		}
+		catch( IOException e )
+		{
+			this.socket.close();
+			throw new FatalIOException( e );
+		}
+		finally
+		{
+			sink.expired = true;
+			sink.lock.unlock();
+			this.socket.resume(); // Also when closed, it gives the socket back
+		}
+		return true;
+	}
+
+	/**
+	 * Writes the status and the headers of the response with the pre-encoded status line, header names and Date. Only
+	 * the header values are encoded, without a charset encoder. The header is written with a few array copies.
+	 */
+	@Override
+	public void writeHeader( OutputStream out )
+	{
+		try
+		{
+			out.write( ResponseHeaders.getStatusLine( this.statusCode, this.statusMessage ) );
+			if( this.date != null && !hasHeader( "Date" ) )
+				out.write( this.date.get() );
+			for( Map.Entry<String, List<String>> entry : this.headers.entrySet() )
+			{
+				byte[] name = ResponseHeaders.getName( entry.getKey() );
+				for( String value : entry.getValue() )
+				{
+					out.write( name );
+					if( value.length() > this.value.length )
+						this.value = new byte[ value.length() ];
+					out.write( this.value, 0, ResponseHeaders.encode( value, this.value ) );
+					out.write( ResponseHeaders.CRLF );
+				}
+			}
+			if( this.request.isConnectionClose() && !hasHeader( "Connection" ) )
+				out.write( ResponseHeaders.CONNECTION_CLOSE );
+			out.write( ResponseHeaders.CRLF );
+		}
+		catch( IOException e )
+		{
+			throw new FatalIOException( e );
+		}
+	}
+
+	// Header names are case insensitive
+	private boolean hasHeader( String name )
+	{
+		for( String header : this.headers.keySet() )
+			if( header.equalsIgnoreCase( name ) )
+				return true;
+		return false;
+	}
+
+	@Override
+	public void finish()
+	{
+		while( true )
+		{
+			int state = this.state.get();
+			if( state == EXPIRED )
+				return; // The server has already answered the request
+			if( this.state.compareAndSet( state, FINISHED ) )
+			{
+				super.finish();
+				if( state == SUSPENDED )
+				{
+					Timeout timeout = this.timeout;
+					if( timeout != null )
+						this.socket.getMachine().removeTimeout( timeout );
+					this.socket.resume();
+				}
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Sends a file as the body of the response, see {@link #sendFile(FileChannel, long, long)}.
+	 *
+	 * @param file The file.
+	 * @throws IOException When the file can not be read.
+	 */
+	public void sendFile( File file ) throws IOException
+	{
+		FileInputStream in = new FileInputStream( file );
+		try
+		{
+			FileChannel channel = in.getChannel();
+			sendFile( channel, 0, channel.size() );
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	/**
+	 * Sends a region of a file as the body of the response. The header is written with the Content-Length set to the
+	 * size of the region, after that the file goes directly from the file channel to the socket channel, see
+	 * {@link #commit(long)}.
+	 *
+	 * @param file The file.
+	 * @param position The position in the file.
+	 * @param count The number of bytes to send.
+	 * @throws IOException When the file can not be read.
+	 */
+	public void sendFile( FileChannel file, long position, long count ) throws IOException
+	{
+		commit( count ).transferFrom( file, position, count );
+	}
+
+	/**
+	 * Writes the header with the Content-Length set to the given length, and returns the output stream of the socket
+	 * so that the body can be written to it directly. Nothing else must be written to the response.
+	 *
+	 * @param contentLength The length of the body.
+	 * @return The output stream of the socket.
+	 * @throws IOException When writing the header fails.
+	 * @throws IllegalStateException When the asynchronous request has already expired, see
+	 *         {@link #expire(int, String)}.
+	 */
+	public SocketOutputStream commit( long contentLength ) throws IOException
+	{
+		if( isCommitted() )
+			throw new IllegalStateException( "Response is already committed" );
+
+		setHeader( "Content-Length", Long.toString( contentLength ) );
+		ResponseSink sink = this.sink;
+		sink.lock.lock();
+		try
+		{
+			if( sink.expired )
+				throw new IllegalStateException( "Request has expired" );
+			getOutputStream().flush(); // Commits the response, which writes the header to the socket output stream
+		}
+		finally
+		{
+			sink.lock.unlock();
+		}
+		// The header has been written, from now on an expire closes the socket
+		return this.socket.getOutputStream();
+	}
+
+
+	/**
+	 * Passes the response to the socket. After the request has expired everything is discarded. The lock serializes
+	 * the writes with {@link NioResponse#expire(int, String)}.
+	 */
+	static private class ResponseSink extends OutputStream
+	{
+		OutputStream out;
+		ReentrantLock lock = new ReentrantLock();
+		boolean written; // Guarded by the lock
+		boolean expired; // Guarded by the lock
+
+		ResponseSink( OutputStream out )
+		{
+			this.out = out;
+		}
+
+		@Override
+		public void write( int b ) throws IOException
+		{
+			this.lock.lock();
+			try
+			{
+				if( this.expired )
+					return;
+				this.written = true;
+				this.out.write( b );
+			}
+			finally
+			{
+				this.lock.unlock();
+			}
+		}
+
+		@Override
+		public void write( byte[] b, int off, int len ) throws IOException
+		{
+			this.lock.lock();
+			try
+			{
+				if( this.expired )
+					return;
+				this.written = true;
+				this.out.write( b, off, len );
+			}
+			finally
+			{
+				this.lock.unlock();
+			}
+		}
+
+		@Override
+		public void flush() throws IOException
+		{
+			this.lock.lock();
+			try
+			{
+				if( !this.expired )
+					this.out.flush();
+			}
+			finally
+			{
+				this.lock.unlock();
+			}
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			this.lock.lock();
+			try
+			{
+				if( !this.expired )
+					this.out.close();
+			}
+			finally
+			{
+				this.lock.unlock();
+			}
+		}
+	}
+}
@@ -0,0 +1,205 @@
+package solidstack.httpserver.nio;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import solidstack.httpserver.HttpException;
+
+
+/**
+ * The request line and headers of a request, as parsed by the {@link RequestParser}. Holds a copy of the bytes and the
+ * offsets of the parts. Strings are only created when they are asked for. One instance is reused for all the requests
+ * of a connection.
+ *
+ * @author Ren M. de Bloois
+ */
+public class ParsedRequest
+{
+	static private final Charset ISO_8859_1 = Charset.forName( "ISO-8859-1" );
+	static private final int MAX_SIZE = 64 * 1024;
+	static private final byte[] GET = "GET".getBytes();
+	static private final byte[] POST = "POST".getBytes();
+	static private final byte[] CLOSE = "close".getBytes();
+
+	byte[] data = new byte[ 1024 ];
+	int length;
+
+	int methodStart; // Empty lines before the request line are skipped
+	int methodEnd;
+	int uriStart;
+	int uriEnd;
+	int queryStart; // After the ?, -1 when there is no query
+	int versionStart;
+	int versionEnd;
+
+	private int headers;
+	private int[] offsets = new int[ 4 * 16 ]; // Start and end of the name and the value of each header
+	private int[] known = new int[ 16 ];
+
+	void reset()
+	{
+		this.length = 0;
+		this.methodStart = 0;
+		this.queryStart = -1;
+		this.headers = 0;
+	}
+
+	// Copies the bytes of the buffer, returns the number of bytes copied
+	int append( ByteBuffer buffer )
+	{
+		int count = buffer.remaining();
+		if( this.length + count > this.data.length && this.data.length < MAX_SIZE )
+		{
+			byte[] data = new byte[ Math.min( Math.max( this.data.length * 2, this.length + count ), MAX_SIZE ) ];
+			System.arraycopy( this.data, 0, data, 0, this.length );
+			this.data = data;
+		}
+		if( count > this.data.length - this.length )
+		{
+			count = this.data.length - this.length;
+			if( count == 0 )
+				throw new HttpException( "Request header too large" );
+		}
+		buffer.get( this.data, this.length, count );
+		this.length += count;
+		return count;
+	}
+
+	void addHeader( int nameStart, int nameEnd, int valueStart, int valueEnd )
+	{
+		if( this.headers == this.known.length )
+		{
+			int[] offsets = new int[ this.offsets.length * 2 ];
+			System.arraycopy( this.offsets, 0, offsets, 0, this.offsets.length );
+			this.offsets = offsets;
+			int[] known = new int[ this.known.length * 2 ];
+			System.arraycopy( this.known, 0, known, 0, this.known.length );
+			this.known = known;
+		}
+		int i = this.headers * 4;
+		this.offsets[ i ] = nameStart;
+		this.offsets[ i + 1 ] = nameEnd;
+		this.offsets[ i + 2 ] = valueStart;
+		this.offsets[ i + 3 ] = valueEnd;
+		this.known[ this.headers++ ] = KnownHeaders.lookup( this.data, nameStart, nameEnd );
+	}
+
+	private String string( int start, int end )
+	{
+		return new String( this.data, start, end - start, ISO_8859_1 );
+	}
+
+	private boolean equals( int start, int end, byte[] bytes )
+	{
+		if( end - start != bytes.length )
+			return false;
+		for( int i = 0; i < bytes.length; i++ )
+			if( this.data[ start + i ] != bytes[ i ] )
+				return false;
+		return true;
+	}
+
+	public String getMethod()
+	{
+		if( equals( this.methodStart, this.methodEnd, GET ) )
+			return "GET";
+		if( equals( this.methodStart, this.methodEnd, POST ) )
+			return "POST";
+		return string( this.methodStart, this.methodEnd );
+	}
+
+	/**
+	 * @return The URI without the query.
+	 */
+	public String getPath()
+	{
+		return string( this.uriStart, this.queryStart >= 0 ? this.queryStart - 1 : this.uriEnd );
+	}
+
+	/**
+	 * @return The query, without the ?, null when there is no query.
+	 */
+	public String getQuery()
+	{
+		return this.queryStart >= 0 ? string( this.queryStart, this.uriEnd ) : null;
+	}
+
+	public boolean isVersion( byte[] version )
+	{
+		return equals( this.versionStart, this.versionEnd, version );
+	}
+
+	public int getHeaderCount()
+	{
+		return this.headers;
+	}
+
+	public String getHeaderName( int index )
+	{
+		int known = this.known[ index ];
+		if( known != KnownHeaders.UNKNOWN )
+			return KnownHeaders.getName( known );
+		return string( this.offsets[ index * 4 ], this.offsets[ index * 4 + 1 ] );
+	}
+
+	public String getHeaderValue( int index )
+	{
+		return string( this.offsets[ index * 4 + 2 ], this.offsets[ index * 4 + 3 ] );
+	}
+
+	/**
+	 * @param index The index of the header.
+	 * @return The known header, see {@link KnownHeaders}, or {@link KnownHeaders#UNKNOWN}.
+	 */
+	public int getKnownHeader( int index )
+	{
+		return this.known[ index ];
+	}
+
+	/**
+	 * @param header The known header.
+	 * @return The index of the first header that is the given known header, -1 if there is none.
+	 */
+	public int indexOf( int header )
+	{
+		for( int i = 0; i < this.headers; i++ )
+			if( this.known[ i ] == header )
+				return i;
+		return -1;
+	}
+
+	/**
+	 * @return The Content-Length, -1 when there is none.
+	 */
+	public long getContentLength()
+	{
+		int index = indexOf( KnownHeaders.CONTENT_LENGTH );
+		if( index < 0 )
+			return -1;
+		int start = this.offsets[ index * 4 + 2 ];
+		int end = this.offsets[ index * 4 + 3 ];
+		if( start == end )
+			throw new HttpException( "Invalid Content-Length" );
+		long result = 0;
+		for( int i = start; i < end; i++ )
+		{
+			byte b = this.data[ i ];
+			if( b < '0' || b > '9' || result > Long.MAX_VALUE / 10 )
+				throw new HttpException( "Invalid Content-Length" );
+			result = result * 10 + b - '0';
+		}
+		return result;
+	}
+
+	/**
+	 * @return True when the request has a Connection: close header.
+	 */
+	public boolean isConnectionClose()
+	{
+		int index = indexOf( KnownHeaders.CONNECTION );
+		if( index < 0 )
+			return false;
+		int start = this.offsets[ index * 4 + 2 ];
+		return this.offsets[ index * 4 + 3 ] - start == CLOSE.length && KnownHeaders.equalsLower( this.data, start, CLOSE );
+	}
+}
@@ -0,0 +1,245 @@
+package solidstack.httpserver.nio;
+
+import java.nio.ByteBuffer;
+
+import solidstack.httpserver.HttpException;
+
+
+/**
+ * State machine that parses the request line and headers of HTTP requests directly from the bytes in a buffer. The
+ * input can be given in parts, the state is kept between the calls to {@link #parse(ByteBuffer)}. The result is kept in
+ * a {@link ParsedRequest} that is reused for the next request, so parsing does not create any objects.
+ *
+ * @author Ren M. de Bloois
+ */
+public class RequestParser
+{
+	static private final int METHOD = 0;
+	static private final int URI_START = 1;
+	static private final int URI = 2;
+	static private final int VERSION_START = 3;
+	static private final int VERSION = 4;
+	static private final int REQUEST_LINE_END = 5;
+	static private final int LINE_LF = 6; // CR seen at the end of a line
+	static private final int LINE_START = 7;
+	static private final int NAME = 8;
+	static private final int VALUE_START = 9;
+	static private final int VALUE = 10;
+	static private final int END_LF = 11; // CR seen at the end of the empty line
+	static private final int DONE = 12;
+
+	private ParsedRequest request = new ParsedRequest();
+	private int state;
+	private int nameStart;
+	private int nameEnd;
+	private int valueStart;
+	private int valueEnd; // After the last byte that is not white space
+
+	public RequestParser()
+	{
+		reset();
+	}
+
+	/**
+	 * Prepares for the next request.
+	 */
+	public void reset()
+	{
+		this.request.reset();
+		this.state = METHOD;
+	}
+
+	/**
+	 * @return True when part of a request has been parsed.
+	 */
+	public boolean isStarted()
+	{
+		return this.request.length > this.request.methodStart;
+	}
+
+	public ParsedRequest getRequest()
+	{
+		return this.request;
+	}
+
+	/**
+	 * Parses the bytes of the buffer till the end of the headers or the end of the buffer. At the end of the headers the
+	 * buffer is left at the start of the body.
+	 *
+	 * @param buffer The buffer, ready to get.
+	 * @return True when the headers are complete, false when more bytes are needed.
+	 * @throws HttpException When the request is malformed.
+	 */
+	public boolean parse( ByteBuffer buffer )
+	{
+		if( this.state == DONE )
+			throw new IllegalStateException( "Request already parsed" );
+
+		// Copy all the bytes at once and give back what comes after the headers
+		ParsedRequest request = this.request;
+		int pos = request.length;
+		int end = pos + request.append( buffer );
+		byte[] data = request.data;
+		int state = this.state;
+
+		for( ; pos < end; pos++ )
+		{
+			byte b = data[ pos ];
+			switch( state )
+			{
+				case METHOD:
+					if( b == ' ' || b == '\t' )
+					{
+						if( pos == request.methodStart )
+							throw new HttpException( "Malformed request line" );
+						request.methodEnd = pos;
+						state = URI_START;
+					}
+					else if( b == '\r' || b == '\n' )
+					{
+						if( pos > request.methodStart )
+							throw new HttpException( "Malformed request line" );
+						request.methodStart = pos + 1; // Empty lines before the request line are ignored
+					}
+					break;
+
+				case URI_START:
+					if( b == ' ' || b == '\t' )
+						break;
+					if( b == '\r' || b == '\n' )
+						throw new HttpException( "Malformed request line" );
+					request.uriStart = pos;
+					if( b == '?' )
+						request.queryStart = pos + 1;
+					state = URI;
+					break;
+
+				case URI:
+					if( b == ' ' || b == '\t' )
+					{
+						request.uriEnd = pos;
+						state = VERSION_START;
+					}
+					else if( b == '?' )
+					{
+						if( request.queryStart < 0 )
+							request.queryStart = pos + 1;
+					}
+					else if( b == '\r' || b == '\n' )
+						throw new HttpException( "Malformed request line" );
+					break;
+
+				case VERSION_START:
+					if( b == ' ' || b == '\t' )
+						break;
+					if( b == '\r' || b == '\n' )
+						throw new HttpException( "Malformed request line" );
+					request.versionStart = pos;
+					state = VERSION;
+					break;
+
+				case VERSION:
+					if( b == ' ' || b == '\t' )
+					{
+						request.versionEnd = pos;
+						state = REQUEST_LINE_END;
+					}
+					else if( b == '\r' )
+					{
+						request.versionEnd = pos;
+						state = LINE_LF;
+					}
+					else if( b == '\n' )
+					{
+						request.versionEnd = pos;
+						state = LINE_START;
+					}
+					break;
+
+				case REQUEST_LINE_END:
+					if( b == '\r' )
+						state = LINE_LF;
+					else if( b == '\n' )
+						state = LINE_START;
+					else if( b != ' ' && b != '\t' )
+						throw new HttpException( "Malformed request line" );
+					break;
+
+				case LINE_LF:
+					if( b != '\n' )
+						throw new HttpException( "Expected a line feed" );
+					state = LINE_START;
+					break;
+
+				case LINE_START:
+					if( b == '\r' )
+						state = END_LF;
+					else if( b == '\n' )
+						return done( buffer, pos, end );
+					else if( b == ' ' || b == '\t' )
+						throw new HttpException( "Folded header lines are not supported" );
+					else
+					{
+						this.nameStart = pos;
+						state = NAME;
+					}
+					break;
+
+				case NAME:
+					if( b == ':' )
+					{
+						if( pos == this.nameStart )
+							throw new HttpException( "Empty header name" );
+						this.nameEnd = pos;
+						state = VALUE_START;
+					}
+					else if( b == '\r' || b == '\n' || b == ' ' || b == '\t' )
+						throw new HttpException( "Malformed header" );
+					break;
+
+				case VALUE_START:
+					if( b == ' ' || b == '\t' )
+						break;
+					this.valueStart = this.valueEnd = pos;
+					if( b == '\r' || b == '\n' )
+						state = endHeader( b );
+					else
+					{
+						this.valueEnd = pos + 1;
+						state = VALUE;
+					}
+					break;
+
+				case VALUE:
+					if( b == '\r' || b == '\n' )
+						state = endHeader( b );
+					else if( b != ' ' && b != '\t' )
+						this.valueEnd = pos + 1;
+					break;
+
+				case END_LF:
+					if( b != '\n' )
+						throw new HttpException( "Expected a line feed" );
+					return done( buffer, pos, end );
+			}
+		}
+
+		this.state = state;
+		return false;
+	}
+
+	private int endHeader( byte b )
+	{
+		this.request.addHeader( this.nameStart, this.nameEnd, this.valueStart, this.valueEnd );
+		return b == '\r' ? LINE_LF : LINE_START;
+	}
+
+	// The last byte of the headers is at pos, the bytes after it belong to the body
+	private boolean done( ByteBuffer buffer, int pos, int end )
+	{
+		this.request.length = pos + 1;
+		buffer.position( buffer.position() - ( end - pos - 1 ) );
+		this.state = DONE;
+		return true;
+	}
+}
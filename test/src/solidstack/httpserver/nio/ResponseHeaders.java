@@ -0,0 +1,117 @@
+package solidstack.httpserver.nio;
+
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * Pre-encoded status lines and header names, so that writing a response header does not need to format or encode
+ * them again.
+ *
+ * @author Ren M. de Bloois
+ */
+class ResponseHeaders
+{
+	static final byte[] CRLF = { '\r', '\n' };
+	static final byte[] CONNECTION_CLOSE = encode( "Connection: close\r\n" );
+
+	static private final int FIRST_STATUS = 100;
+	static private final String[] MESSAGES = new String[ 600 - FIRST_STATUS ];
+	static private final byte[][] STATUS_LINES = new byte[ 600 - FIRST_STATUS ][];
+
+	// Only read after the static initializer, so no need to synchronize
+	static private final Map<String, byte[]> NAMES = new HashMap<String, byte[]>();
+
+	static
+	{
+		status( 100, "Continue" );
+		status( 200, "OK" );
+		status( 201, "Created" );
+		status( 202, "Accepted" );
+		status( 204, "No Content" );
+		status( 206, "Partial Content" );
+		status( 301, "Moved Permanently" );
+		status( 302, "Found" );
+		status( 303, "See Other" );
+		status( 304, "Not Modified" );
+		status( 307, "Temporary Redirect" );
+		status( 400, "Bad Request" );
+		status( 401, "Unauthorized" );
+		status( 403, "Forbidden" );
+		status( 404, "Not Found" );
+		status( 405, "Method Not Allowed" );
+		status( 408, "Request Timeout" );
+		status( 413, "Request Entity Too Large" );
+		status( 500, "Internal Server Error" );
+		status( 501, "Not Implemented" );
+		status( 502, "Bad Gateway" );
+		status( 503, "Service Unavailable" );
+		status( 504, "Gateway Timeout" );
+
+		for( String name : new String[] { "Cache-Control", "Connection", "Content-Encoding", "Content-Length",
+				"Content-Type", "ETag", "Expires", "Last-Modified", "Location", "Server", "Set-Cookie", "Transfer-Encoding",
+				"Vary" } )
+			NAMES.put( name, encode( name + ": " ) );
+	}
+
+	static private void status( int code, String message )
+	{
+		MESSAGES[ code - FIRST_STATUS ] = message;
+		STATUS_LINES[ code - FIRST_STATUS ] = statusLine( code, message );
+	}
+
+	static private byte[] statusLine( int code, String message )
+	{
+		return encode( "HTTP/1.1 " + code + " " + message + "\r\n" );
+	}
+
+	/**
+	 * @param message The message, null for the standard message of the code.
+	 * @return The status line including the line end, cached when the message is the standard one.
+	 */
+	static byte[] getStatusLine( int code, String message )
+	{
+		if( code >= FIRST_STATUS && code < 600 )
+		{
+			int index = code - FIRST_STATUS;
+			if( STATUS_LINES[ index ] != null && ( message == null || MESSAGES[ index ].equals( message ) ) )
+				return STATUS_LINES[ index ];
+		}
+		return statusLine( code, message != null ? message : "" );
+	}
+
+	/**
+	 * @return The header name followed by ": ", cached for common headers.
+	 */
+	static byte[] getName( String name )
+	{
+		byte[] result = NAMES.get( name );
+		if( result != null )
+			return result;
+		return encode( name + ": " );
+	}
+
+	/**
+	 * Encodes the characters as ISO-8859-1 without going through a charset encoder.
+	 *
+	 * @param target Receives the bytes, must be large enough.
+	 * @return The number of bytes.
+	 */
+	static int encode( String s, byte[] target )
+	{
+		int len = s.length();
+		for( int i = 0; i < len; i++ )
+		{
+			char c = s.charAt( i );
+			target[ i ] = c < 256 ? (byte)c : (byte)'?';
+		}
+		return len;
+	}
+
+	static byte[] encode( String s )
+	{
+		byte[] result = new byte[ s.length() ];
+		encode( s, result );
+		return result;
+	}
+}
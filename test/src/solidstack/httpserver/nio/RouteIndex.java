@@ -0,0 +1,184 @@
+package solidstack.httpserver.nio;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import solidstack.httpserver.ApplicationContext;
+
+
+/**
+ * Finds the application for a host and a path. The routes are compiled into a trie of host names, each with a trie of
+ * path prefixes. The tries are rebuilt when a route is added and then published, so lookups need no locking. A lookup
+ * walks the characters of the host and the path once and allocates nothing.
+ *
+ * <p>A path prefix only matches at a segment boundary: "/shop" matches "/shop" and "/shop/cart", but not "/shopping".
+ * The longest matching prefix wins. Routes of a specific host take precedence over routes for any host.</p>
+ *
+ * @author Ren M. de Bloois
+ */
+class RouteIndex
+{
+	private List<Route> routes = new ArrayList<Route>();
+	private volatile Node hosts = new Node(); // The paths of the root are for any host
+
+	/**
+	 * Adds a route, replacing the route with the same host and path.
+	 *
+	 * @param host The host name, or null for any host.
+	 * @param path The path prefix, "" or "/" for all paths.
+	 * @param application The application.
+	 */
+	synchronized void add( String host, String path, ApplicationContext application )
+	{
+		if( host != null )
+		{
+			host = host.toLowerCase();
+			if( host.length() == 0 )
+				host = null;
+		}
+		if( path.endsWith( "/" ) )
+			path = path.substring( 0, path.length() - 1 );
+		if( path.length() > 0 && path.charAt( 0 ) != '/' )
+			throw new IllegalArgumentException( "path must start with a /" );
+
+		for( Route route : this.routes )
+			if( path.equals( route.path ) && ( host == null ? route.host == null : host.equals( route.host ) ) )
+			{
+				route.application = application;
+				compile();
+				return;
+			}
+
+		this.routes.add( new Route( host, path, application ) );
+		compile();
+	}
+
+	/**
+	 * @param host The Host header, may contain a port, or null. An IPv6 address is between brackets.
+	 * @param path The path of the request.
+	 * @return The application, or null when no route matches.
+	 */
+	ApplicationContext get( String host, String path )
+	{
+		Node hosts = this.hosts;
+		if( host != null )
+		{
+			Node node = hosts;
+			int len = portStart( host );
+			for( int i = 0; i < len && node != null; i++ )
+			{
+				char c = host.charAt( i );
+				if( c >= 'A' && c <= 'Z' )
+					c += 'a' - 'A';
+				node = node.get( c );
+			}
+			if( node != null && node.paths != null )
+			{
+				ApplicationContext result = match( node.paths, path );
+				if( result != null )
+					return result;
+			}
+		}
+		if( hosts.paths == null )
+			return null;
+		return match( hosts.paths, path );
+	}
+
+	// The end of the host name, where the port starts. The colons of an IPv6 address are between brackets.
+	static private int portStart( String host )
+	{
+		int colon = host.lastIndexOf( ':' );
+		if( colon < 0 || colon < host.lastIndexOf( ']' ) )
+			return host.length();
+		return colon;
+	}
+
+	// Longest prefix that ends at a segment boundary
+	static private ApplicationContext match( Node node, String path )
+	{
+		ApplicationContext result = null;
+		int len = path.length();
+		int i = 0;
+		while( true )
+		{
+			if( node.application != null && ( i == len || path.charAt( i ) == '/' ) )
+				result = node.application;
+			if( i == len )
+				return result;
+			node = node.get( path.charAt( i++ ) );
+			if( node == null )
+				return result;
+		}
+	}
+
+	private void compile()
+	{
+		Node hosts = new Node();
+		for( Route route : this.routes )
+		{
+			Node node = hosts;
+			if( route.host != null )
+				node = node.add( route.host );
+			if( node.paths == null )
+				node.paths = new Node();
+			node.paths.add( route.path ).application = route.application;
+		}
+		this.hosts = hosts;
+	}
+
+	static private class Route
+	{
+		String host;
+		String path;
+		ApplicationContext application;
+
+		Route( String host, String path, ApplicationContext application )
+		{
+			this.host = host;
+			this.path = path;
+			this.application = application;
+		}
+	}
+
+	static private class Node
+	{
+		char[] chars = new char[ 0 ];
+		Node[] children = new Node[ 0 ];
+		ApplicationContext application;
+		Node paths; // The paths of a host
+
+		// Few children per node, a linear search is fastest
+		Node get( char c )
+		{
+			char[] chars = this.chars;
+			for( int i = 0; i < chars.length; i++ )
+				if( chars[ i ] == c )
+					return this.children[ i ];
+			return null;
+		}
+
+		Node add( String key )
+		{
+			Node node = this;
+			for( int i = 0; i < key.length(); i++ )
+			{
+				char c = key.charAt( i );
+				Node child = node.get( c );
+				if( child == null )
+				{
+					int len = node.chars.length;
+					char[] chars = new char[ len + 1 ];
+					Node[] children = new Node[ len + 1 ];
+					System.arraycopy( node.chars, 0, chars, 0, len );
+					System.arraycopy( node.children, 0, children, 0, len );
+					chars[ len ] = c;
+					children[ len ] = child = new Node();
+					node.chars = chars;
+					node.children = children;
+				}
+				node = child;
+			}
+			return node;
+		}
+	}
+}
@@ -0,0 +1,64 @@
+package solidstack.httpserver.nio;
+
+import solidstack.httpserver.ApplicationContext;
+
+
+/**
+ * Checks the routing of the {@link RouteIndex}. Run it as a main class, it ends with an exception when a route is
+ * wrong.
+ *
+ * @author Ren M. de Bloois
+ */
+public class RouteIndexTest
+{
+	static public void main( String[] args )
+	{
+		RouteIndex routes = new RouteIndex();
+		check( routes, "www.example.com", "/", null );
+
+		ApplicationContext all = new ApplicationContext();
+		ApplicationContext shop = new ApplicationContext();
+		ApplicationContext admin = new ApplicationContext();
+		ApplicationContext api = new ApplicationContext();
+		ApplicationContext v2 = new ApplicationContext();
+		ApplicationContext local = new ApplicationContext();
+		routes.add( null, "", all );
+		routes.add( null, "/shop", shop );
+		routes.add( null, "/shop/admin/", admin );
+		routes.add( "API.example.com", "/", api );
+		routes.add( "api.example.com", "/v2", v2 );
+		routes.add( "[::1]", "/", local );
+
+		// Path prefixes match whole segments, the longest wins
+		check( routes, null, "", all );
+		check( routes, null, "/shop", shop );
+		check( routes, null, "/shopping", all );
+		check( routes, null, "/shop/cart", shop );
+		check( routes, null, "/shop/admin", admin );
+		check( routes, null, "/shop/adminx", shop );
+
+		// Host names ignore case and port, and fall back to the routes for any host
+		check( routes, "api.Example.com:8080", "/x", api );
+		check( routes, "api.example.com", "/v2/orders", v2 );
+		check( routes, "api.example.co", "/shop", shop );
+		check( routes, "api.example.comm", "/x", all );
+
+		// The colons of an IPv6 address are not a port
+		check( routes, "[::1]:8080", "/x", local );
+		check( routes, "[::1]", "/x", local );
+		check( routes, "[::2]:8080", "/shop", shop );
+
+		// Replacing a route
+		ApplicationContext shop2 = new ApplicationContext();
+		routes.add( null, "/shop", shop2 );
+		check( routes, null, "/shop/cart", shop2 );
+
+		System.out.println( "OK" );
+	}
+
+	static private void check( RouteIndex routes, String host, String path, ApplicationContext expected )
+	{
+		if( routes.get( host, path ) != expected )
+			throw new IllegalStateException( "Wrong application for host " + host + ", path " + path );
+	}
+}
@@ -4,30 +4,49 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import solidstack.httpclient.nio.BodyInputStream;
 import solidstack.httpserver.ApplicationContext;
 import solidstack.httpserver.CloseBlockingOutputStream;
 import solidstack.httpserver.FatalSocketException;
 import solidstack.httpserver.HttpException;
-import solidstack.httpserver.HttpHeaderTokenizer;
-import solidstack.httpserver.Request;
 import solidstack.httpserver.RequestContext;
 import solidstack.httpserver.Response;
-import solidstack.httpserver.Token;
-import solidstack.httpserver.UrlEncodedParser;
 import solidstack.lang.SystemException;
+import solidstack.nio.Loggers;
 import solidstack.nio.ResponseReader;
 import solidstack.nio.ServerSocket;
 import solidstack.nio.Socket;
+import solidstack.nio.SocketInputStream;
 import solidstack.nio.SocketMachine;
+import solidstack.nio.SocketOptions;
+import solidstack.nio.Timeout;
 
 
+/**
+ * HTTP server on a {@link SocketMachine}. The requests are read and the responses are written with the blocking socket
+ * streams, because the servlets and the {@link Response} are blocking. The event mode of
+ * {@link ServerSocket#setHandler(solidstack.nio.SocketHandler)} is for protocols that can be handled on the selector
+ * thread, it can not be used for this server.
+ */
 public class Server
 {
+	static private final byte[] HTTP_1_1 = "HTTP/1.1".getBytes();
+
 	private int port;
-	private ApplicationContext application; // TODO Make this a Map
+	private ApplicationContext application;
+	private RouteIndex routes = new RouteIndex();
 	private SocketMachine dispatcher;
 	private ServerSocket socket;
+	private DateHeader date;
+
+	private long asyncTimeout = 30000;
+	private int asyncTimeoutStatus = 503;
+	private String asyncTimeoutMessage = "Service Unavailable";
+	private AtomicInteger asyncStarted = new AtomicInteger();
+	private AtomicInteger asyncExpired = new AtomicInteger();
 //	boolean debug;
 
 	public Server( SocketMachine dispatcher, int port ) throws IOException
@@ -35,13 +54,31 @@ public class Server
 		this.dispatcher = dispatcher;
 		this.port = port;
 
+		this.date = new DateHeader( dispatcher );
 		this.socket = dispatcher.listen( new InetSocketAddress( port ) );
 		this.socket.setReader( new MyRequestReader() );
 	}
 
+	/**
+	 * Sets the application for all hosts and paths that have no application of their own.
+	 */
 	public void setApplication( ApplicationContext application )
 	{
 		this.application = application;
+		this.routes.add( null, "", application );
+	}
+
+	/**
+	 * Adds an application for a host and path prefix. A prefix matches whole path segments, the longest prefix wins.
+	 * The url of the request is given to the application unchanged.
+	 *
+	 * @param host The host name, or null for any host.
+	 * @param path The path prefix, "" or "/" for all paths.
+	 * @param application The application.
+	 */
+	public void addApplication( String host, String path, ApplicationContext application )
+	{
+		this.routes.add( host, path, application );
 	}
 
 	public ApplicationContext getApplication()
@@ -54,48 +91,106 @@ public class Server
 		return this.dispatcher;
 	}
 
+	/**
+	 * Stops listening and stops the refresh of the Date header. The connections that are open are not closed.
+	 */
+	public void close()
+	{
+		this.socket.close();
+		this.date.stop();
+	}
+
 	public void setMaxConnections( int maxConnections )
 	{
 		this.socket.setMaxConnections( maxConnections );
 	}
 
+	/**
+	 * @return The options for the accepted connections, like auto batching and TCP_NODELAY, which can be changed. See
+	 *         {@link ServerSocket#getOptions()}.
+	 */
+	public SocketOptions getOptions()
+	{
+		return this.socket.getOptions();
+	}
+
+	/**
+	 * Sets the time an asynchronous request gets to finish its response. After that the server answers the request
+	 * itself, see {@link #setAsyncTimeoutStatus(int, String)}, or closes the socket when the response is already
+	 * committed.
+	 *
+	 * @param timeout The timeout in milliseconds, 0 for no timeout. The default is 30 seconds.
+	 */
+	public void setAsyncTimeout( long timeout )
+	{
+		this.asyncTimeout = timeout;
+	}
+
+	/**
+	 * Sets the status of the response when an asynchronous request times out. The default is 503 Service Unavailable, a
+	 * proxy would use 504 Gateway Timeout.
+	 */
+	public void setAsyncTimeoutStatus( int code, String message )
+	{
+		this.asyncTimeoutStatus = code;
+		this.asyncTimeoutMessage = message;
+	}
+
+	/**
+	 * @return The number of asynchronous requests started and the number that timed out.
+	 */
+	public int[] getAsyncCounts()
+	{
+		return new int[] { this.asyncStarted.get(), this.asyncExpired.get() };
+	}
+
 	public class MyRequestReader implements ResponseReader
 	{
 		public void incoming( Socket socket ) throws IOException
 		{
-			Request request = new Request();
-
-			HttpHeaderTokenizer tokenizer = new HttpHeaderTokenizer( socket.getInputStream() );
-
-			String line = tokenizer.getLine();
-			String[] parts = line.split( "[ \t]+" );
+			// The parser is reused for all the requests of the connection
+			Connection connection = (Connection)socket.attachment();
+			if( connection == null )
+			{
+				connection = new Connection();
+				socket.attach( connection );
+			}
+			else if( connection.async != null )
+			{
+				// The asynchronous response is finished, otherwise the socket would not have been resumed
+				connection.async.drain();
+				connection.async = null;
+			}
+			RequestParser requestParser = connection.parser;
+			requestParser.reset();
 
-			request.setMethod( parts[ 0 ] );
+			SocketInputStream in = socket.getInputStream();
+			while( true )
+			{
+				ByteBuffer buffer = in.getReadBuffer();
+				if( buffer == null )
+				{
+					if( !requestParser.isStarted() )
+						return;
+					throw new HttpException( "Connection closed in the request header" );
+				}
+				if( requestParser.parse( buffer ) )
+					break;
+			}
 
-			String url = parts[ 1 ];
-			if( !parts[ 2 ].equals( "HTTP/1.1" ) )
+			ParsedRequest head = requestParser.getRequest();
+			if( !head.isVersion( HTTP_1_1 ) )
 				throw new HttpException( "Only HTTP/1.1 requests are supported" );
 
+			NioRequest request = new NioRequest();
+			request.setMethod( head.getMethod() );
+
 //			if( Server.this.debug )
 //				System.out.println( "GET " + url + " HTTP/1.1" );
 
-			String parameters = null;
-			int pos = url.indexOf( '?' );
-			if( pos >= 0 )
-			{
-				parameters = url.substring( pos + 1 );
-				url = url.substring( 0, pos );
-
-				String[] pars = parameters.split( "&" );
-				for( String par : pars )
-				{
-					pos = par.indexOf( '=' );
-					if( pos >= 0 )
-						request.addParameter( par.substring( 0, pos ), par.substring( pos + 1 ) );
-					else
-						request.addParameter( par, null );
-				}
-			}
+			String url = head.getPath();
+			String parameters = head.getQuery();
+			request.setParameters( parameters ); // Decoded when asked for
 
 			// TODO Fragment too? Maybe use the URI class?
 
@@ -104,51 +199,42 @@ public class Server
 			request.setUrl( url );
 			request.setQuery( parameters );
 
-			Token field = tokenizer.getField();
-			while( !field.isEndOfInput() )
+			int headers = head.getHeaderCount();
+			for( int i = 0; i < headers; i++ )
 			{
-				Token value = tokenizer.getValue();
-				if( field.equals( "Cookie" ) ) // TODO Case insensitive?
+				String value = head.getHeaderValue( i );
+				if( head.getKnownHeader( i ) == KnownHeaders.COOKIE )
 				{
-					String s = value.getValue();
-					int pos2 = s.indexOf( '=' );
-					if( pos2 >= 0 )
-						request.addCookie( s.substring( 0, pos2 ), s.substring( pos2 + 1 ) );
+					int pos = value.indexOf( '=' );
+					if( pos >= 0 )
+						request.addCookie( value.substring( 0, pos ), value.substring( pos + 1 ) );
 					else
-						request.addHeader( field.getValue(), s );
+						request.addHeader( head.getHeaderName( i ), value );
 				}
 				else
 				{
-					request.addHeader( field.getValue(), value.getValue() );
+					request.addHeader( head.getHeaderName( i ), value );
 				}
-				field = tokenizer.getField();
 			}
 
-			String contentType = request.getHeader( "Content-Type" );
-			if( "application/x-www-form-urlencoded".equals( contentType ) )
+			long contentLength = head.getContentLength();
+			if( contentLength > 0 )
 			{
-				String contentLength = request.getHeader( "Content-Length" );
-				if( contentLength != null )
-				{
-					int len = Integer.parseInt( contentLength );
-					UrlEncodedParser parser = new UrlEncodedParser( socket.getInputStream(), len );
-					String parameter = parser.getParameter();
-					while( parameter != null )
-					{
-						String value = parser.getValue();
-						request.addParameter( parameter, value );
-						parameter = parser.getParameter();
-					}
-				}
+				String contentType = request.getHeader( "Content-Type" );
+				request.setBody( new BodyInputStream( in, contentLength ), "application/x-www-form-urlencoded".equals( contentType ) );
 			}
 
 			OutputStream out = socket.getOutputStream();
 			out = new CloseBlockingOutputStream( out );
-			Response response = new Response( request, out );
-			RequestContext context = new RequestContext( request, response, getApplication() );
+			Response response = new NioResponse( request, out, socket, Server.this.date );
+			ApplicationContext application = Server.this.routes.get( request.getHeader( "Host" ), url );
+			RequestContext context = new RequestContext( request, response, application );
 			try
 			{
-				getApplication().dispatch( context );
+				if( application != null )
+					application.dispatch( context );
+				else
+					response.setStatusCode( 404, "Not Found" );
 			}
 			catch( FatalSocketException e )
 			{
@@ -180,25 +266,36 @@ public class Server
 			if( !context.isAsync() )
 			{
 				response.finish();
+				request.drain();
 
 				// TODO Detect Connection: close headers on the request & response
 				// TODO A GET request has no body, when a POST comes without content size, the connection should be closed.
 				// TODO What about socket.getKeepAlive() and the other properties?
 
+				boolean close = request.isConnectionClose();
 				String length = response.getHeader( "Content-Length" );
 				if( length == null )
 				{
 					String transfer = response.getHeader( "Transfer-Encoding" );
 					if( !"chunked".equals( transfer ) )
-						socket.close();
+						close = true;
 				}
 
-				if( request.isConnectionClose() )
-					socket.close();
+				if( close )
+					socket.getOutputStream().close(); // Also writes what auto batching held back
 			}
 			else
 			{
-				// TODO Add to timeout manager
+				Server.this.asyncStarted.incrementAndGet();
+				connection.async = request; // Its body is drained when the next request comes in
+				request.endTask(); // Reads a form body while the task still owns the socket input stream
+				NioResponse nioResponse = (NioResponse)response;
+				if( nioResponse.suspend() && Server.this.asyncTimeout > 0 ) // Pipelined requests wait till the response is finished
+				{
+					AsyncTimeout timeout = new AsyncTimeout( nioResponse, System.currentTimeMillis() + Server.this.asyncTimeout );
+					socket.getMachine().addTimeout( timeout );
+					nioResponse.setTimeout( timeout );
+				}
 			}
 		}
 
@@ -207,4 +304,39 @@ public class Server
 			throw new UnsupportedOperationException();
 		}
 	}
+
+	private class AsyncTimeout extends Timeout
+	{
+		NioResponse response;
+
+		AsyncTimeout( NioResponse response, long when )
+		{
+			super( when );
+			this.response = response;
+		}
+
+		@Override
+		protected void fire()
+		{
+			// Writing the response may block, so not on the selector thread
+			this.response.getSocket().getMachine().execute( new Runnable()
+			{
+				public void run()
+				{
+					if( AsyncTimeout.this.response.expire( Server.this.asyncTimeoutStatus, Server.this.asyncTimeoutMessage ) )
+					{
+						Server.this.asyncExpired.incrementAndGet();
+						Loggers.nio.debug( "Channel ({}) Asynchronous request timed out", AsyncTimeout.this.response.getSocket().getDebugId() );
+					}
+				}
+			} );
+		}
+	}
+
+	// State of a connection, attached to the socket
+	static private class Connection
+	{
+		RequestParser parser = new RequestParser();
+		NioRequest async; // The last request when it was handled asynchronously
+	}
 }
@@ -0,0 +1,58 @@
+package solidstack.nio;
+
+
+/**
+ * The buffer size of one socket stream, adapted to the number of bytes that go through the buffer, see
+ * {@link BufferSizing}. Only used by the thread that uses the stream.
+ *
+ * @author Ren M. de Bloois
+ */
+class AdaptiveBufferSize
+{
+	static private final int SHRINK_AFTER = 4; // Number of small uses in a row
+
+	private BufferSizing sizing;
+	private int size;
+	private int small;
+
+	AdaptiveBufferSize( BufferSizing sizing )
+	{
+		this.sizing = sizing;
+		this.size = sizing.getInitialSize();
+	}
+
+	int get()
+	{
+		return this.size;
+	}
+
+	/**
+	 * Records a use of the buffer.
+	 *
+	 * @param used The number of bytes read into or written from the buffer.
+	 * @return 1 when the size has grown, -1 when it has shrunk, 0 otherwise.
+	 */
+	int record( int used )
+	{
+		if( used >= this.size )
+		{
+			this.small = 0;
+			if( this.size >= this.sizing.getMaxSize() )
+				return 0;
+			this.size = Math.min( this.size * 2, this.sizing.getMaxSize() );
+			return 1;
+		}
+
+		if( used > this.size / 4 )
+		{
+			this.small = 0;
+			return 0;
+		}
+
+		if( ++this.small < SHRINK_AFTER || this.size <= this.sizing.getMinSize() )
+			return 0;
+		this.small = 0;
+		this.size = Math.max( this.size / 2, this.sizing.getMinSize() );
+		return -1;
+	}
+}
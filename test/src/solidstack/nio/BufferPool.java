@@ -0,0 +1,210 @@
+package solidstack.nio;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Pool of direct buffers in size classes from 512 bytes to 256 KB, doubling in size. Direct buffers are read and written
+ * by the channels without the copy through a temporary direct buffer that heap buffers need. The buffers are sliced
+ * from slabs of 1 MB, so that small buffers do not each take a page of native memory.
+ *
+ * <p>With leak detection on, the pool remembers where each leased buffer was leased, see {@link #logLeaks(long)}.
+ * Releasing a buffer twice or releasing a buffer that does not belong to the pool then fails.</p>
+ *
+ * @author Ren M. de Bloois
+ */
+public class BufferPool
+{
+	static public final int MIN_SIZE = 512;
+	static public final int MAX_SIZE = 256 * 1024;
+	static private final int CLASSES = 10;
+	static private final int SLAB = 1024 * 1024;
+
+	static private final BufferPool shared = new BufferPool( 1024, Boolean.getBoolean( "solidstack.nio.leakDetection" ) );
+
+	private SizeClass[] classes = new SizeClass[ CLASSES ];
+	private AtomicLong allocated = new AtomicLong(); // Bytes of native memory allocated
+
+	private boolean leakDetection;
+	private Map<ByteBuffer, Lease> leases = new IdentityHashMap<ByteBuffer, Lease>();
+
+	/**
+	 * @return The pool that is shared by the socket machines. Leak detection is turned on with the system property
+	 *         solidstack.nio.leakDetection=true.
+	 */
+	static public BufferPool getShared()
+	{
+		return shared;
+	}
+
+	/**
+	 * @param maxPooled The maximum number of free buffers kept for each size class.
+	 * @param leakDetection Remember where each buffer was leased. This costs a stack trace per lease.
+	 */
+	public BufferPool( int maxPooled, boolean leakDetection )
+	{
+		for( int i = 0; i < CLASSES; i++ )
+			this.classes[ i ] = new SizeClass( MIN_SIZE << i, maxPooled );
+		this.leakDetection = leakDetection;
+	}
+
+	static private int sizeClass( int size )
+	{
+		if( size > MAX_SIZE )
+			throw new IllegalArgumentException( "size can not be larger than " + MAX_SIZE );
+		int result = 0;
+		while( MIN_SIZE << result < size )
+			result++;
+		return result;
+	}
+
+	/**
+	 * Leases a buffer. The capacity of the buffer is the size rounded up to the size class.
+	 *
+	 * @param size The minimum size of the buffer.
+	 * @return The buffer, cleared.
+	 */
+	public ByteBuffer lease( int size )
+	{
+		ByteBuffer result = this.classes[ sizeClass( size ) ].lease();
+		if( this.leakDetection )
+			synchronized( this.leases )
+			{
+				this.leases.put( result, new Lease() );
+			}
+		return result;
+	}
+
+	/**
+	 * Returns a buffer to the pool. The buffer must not be used anymore.
+	 *
+	 * @param buffer The buffer.
+	 */
+	public void release( ByteBuffer buffer )
+	{
+		int c = sizeClass( buffer.capacity() );
+		if( !buffer.isDirect() || buffer.capacity() != MIN_SIZE << c )
+			throw new IllegalArgumentException( "Buffer is not from a buffer pool" );
+		if( this.leakDetection )
+			synchronized( this.leases )
+			{
+				if( this.leases.remove( buffer ) == null )
+					throw new IllegalStateException( "Buffer is not leased from this pool" );
+			}
+		this.classes[ c ].release( buffer );
+	}
+
+	/**
+	 * Logs the buffers that have been leased longer than the given age, with the stack trace of the lease. Only works
+	 * with leak detection on.
+	 *
+	 * @param age The age in milliseconds.
+	 * @return The number of buffers logged.
+	 */
+	public int logLeaks( long age )
+	{
+		List<Lease> leaks = new ArrayList<Lease>();
+		long before = System.currentTimeMillis() - age;
+		synchronized( this.leases )
+		{
+			for( Lease lease : this.leases.values() )
+				if( lease.time < before )
+					leaks.add( lease );
+		}
+		for( Lease lease : leaks )
+			Loggers.nio.warn( "Buffer leased " + ( System.currentTimeMillis() - lease.time ) + " ms ago and not released", lease.stack );
+		return leaks.size();
+	}
+
+	/**
+	 * @return The number of buffers leased, the number of free buffers in the pool and the number of bytes of native
+	 *         memory allocated.
+	 */
+	public long[] getCounts()
+	{
+		long leased = 0;
+		long pooled = 0;
+		for( SizeClass c : this.classes )
+		{
+			leased += c.leased.get();
+			pooled += c.pooledCount.get();
+		}
+		return new long[] { leased, pooled, this.allocated.get() };
+	}
+
+	/**
+	 * @param size The buffer size.
+	 * @return The number of buffers leased and the number of free buffers in the pool of the size class of the given size.
+	 */
+	public int[] getCounts( int size )
+	{
+		SizeClass c = this.classes[ sizeClass( size ) ];
+		return new int[] { c.leased.get(), c.pooledCount.get() };
+	}
+
+	private class SizeClass
+	{
+		int size;
+		int maxPooled;
+		ConcurrentLinkedQueue<ByteBuffer> pooled = new ConcurrentLinkedQueue<ByteBuffer>();
+		AtomicInteger pooledCount = new AtomicInteger(); // The size() of the queue is O(n)
+		AtomicInteger leased = new AtomicInteger();
+
+		SizeClass( int size, int maxPooled )
+		{
+			this.size = size;
+			this.maxPooled = maxPooled;
+		}
+
+		ByteBuffer lease()
+		{
+			this.leased.incrementAndGet();
+			ByteBuffer result = this.pooled.poll();
+			if( result != null )
+			{
+				this.pooledCount.decrementAndGet();
+				result.clear();
+				return result;
+			}
+
+			// Cut a new slab, keep the rest in the pool
+			int count = Math.max( 1, Math.min( SLAB / this.size, this.maxPooled ) );
+			ByteBuffer slab = ByteBuffer.allocateDirect( this.size * count );
+			BufferPool.this.allocated.addAndGet( slab.capacity() );
+			for( int i = 1; i < count; i++ )
+			{
+				slab.limit( ( i + 1 ) * this.size );
+				slab.position( i * this.size );
+				this.pooled.add( slab.slice() );
+				this.pooledCount.incrementAndGet();
+			}
+			slab.limit( this.size );
+			slab.position( 0 );
+			return slab.slice();
+		}
+
+		void release( ByteBuffer buffer )
+		{
+			this.leased.decrementAndGet();
+			if( this.pooledCount.incrementAndGet() > this.maxPooled )
+			{
+				this.pooledCount.decrementAndGet();
+				return; // Pool is full, the garbage collector will free it when the whole slab is free
+			}
+			this.pooled.add( buffer );
+		}
+	}
+
+	static private class Lease
+	{
+		long time = System.currentTimeMillis();
+		Throwable stack = new Throwable( "Leased here" );
+	}
+}
@@ -0,0 +1,63 @@
+package solidstack.nio;
+
+
+/**
+ * The bounds between which the socket streams size their buffers. Each stream starts with the initial size. A stream
+ * doubles the size of its buffer when a read from the channel fills the buffer, or when the buffer is full when it is
+ * written. It halves the size when the buffer is used for a quarter or less a number of times in a row. Small
+ * exchanges end up with small buffers, bulk transfers with large buffers and fewer system calls.
+ *
+ * @author Ren M. de Bloois
+ */
+public class BufferSizing
+{
+	static public final BufferSizing DEFAULT = new BufferSizing( BufferPool.MIN_SIZE, 8192, BufferPool.MAX_SIZE );
+
+	private int minSize;
+	private int initialSize;
+	private int maxSize;
+
+	/**
+	 * The sizes must be powers of 2, like the size classes of the {@link BufferPool}.
+	 *
+	 * @param minSize The minimum size, at least {@link BufferPool#MIN_SIZE}.
+	 * @param initialSize The initial size.
+	 * @param maxSize The maximum size, at most {@link BufferPool#MAX_SIZE}.
+	 */
+	public BufferSizing( int minSize, int initialSize, int maxSize )
+	{
+		if( minSize < BufferPool.MIN_SIZE )
+			throw new IllegalArgumentException( "minSize can not be smaller than " + BufferPool.MIN_SIZE );
+		if( maxSize > BufferPool.MAX_SIZE )
+			throw new IllegalArgumentException( "maxSize can not be larger than " + BufferPool.MAX_SIZE );
+		if( Integer.bitCount( minSize ) != 1 || Integer.bitCount( initialSize ) != 1 || Integer.bitCount( maxSize ) != 1 )
+			throw new IllegalArgumentException( "Sizes must be powers of 2" );
+		if( initialSize < minSize || initialSize > maxSize )
+			throw new IllegalArgumentException( "initialSize must be between minSize and maxSize" );
+
+		this.minSize = minSize;
+		this.initialSize = initialSize;
+		this.maxSize = maxSize;
+	}
+
+	public int getMinSize()
+	{
+		return this.minSize;
+	}
+
+	public int getInitialSize()
+	{
+		return this.initialSize;
+	}
+
+	public int getMaxSize()
+	{
+		return this.maxSize;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "min=" + this.minSize + ", initial=" + this.initialSize + ", max=" + this.maxSize;
+	}
+}
@@ -1,10 +1,11 @@
 package solidstack.nio;
 
+import java.io.IOException;
 import java.net.ConnectException;
+import java.util.ArrayList;
 import java.util.LinkedList;
-import java.util.concurrent.Semaphore;
-
-import solidstack.lang.ThreadInterrupted;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 
@@ -17,23 +18,22 @@ public class ClientSocket
 
 	private int maxConnections = 100;
 	private int maxQueueSize = 10000;
+	private int connectTimeout = 10000;
+
+	private SocketHandler handler;
+	private SocketOptions options = new SocketOptions();
 
-	private SocketPool pool = new SocketPool();
-	Semaphore expand = new Semaphore( 0 );
+	private SocketPool pool;
+	private AtomicInteger connecting = new AtomicInteger(); // Connections that are being set up
 
 	private LinkedList<RequestWriter> queue = new LinkedList<RequestWriter>();
-	private ConnectingThread thread;
 
 	public ClientSocket( String hostname, int port, SocketMachine machine )
 	{
 		this.hostname = hostname;
 		this.port = port;
 		this.machine = machine;
-
-		machine.registerClientSocket( this ); // TODO Need Client.close() which removes this pool from the dispatcher
-
-		this.thread = new ConnectingThread();
-		this.thread.start();
+		this.pool = new SocketPool( machine );
 	}
 
 	public void setMaxConnections( int maxConnections )
@@ -41,6 +41,40 @@ public class ClientSocket
 		this.maxConnections = maxConnections;
 	}
 
+	public void setConnectTimeout( int connectTimeout )
+	{
+		this.connectTimeout = connectTimeout;
+	}
+
+	/**
+	 * Puts the new connections in event mode, see {@link Socket#setHandler(SocketHandler)}. The request writers should
+	 * use {@link Socket#write(java.nio.ByteBuffer)}.
+	 *
+	 * @param handler The handler for the new connections.
+	 */
+	public void setHandler( SocketHandler handler )
+	{
+		this.handler = handler;
+	}
+
+	SocketHandler getHandler()
+	{
+		return this.handler;
+	}
+
+	/**
+	 * @return The options for the new connections, which can be changed.
+	 */
+	public SocketOptions getOptions()
+	{
+		return this.options;
+	}
+
+	public void setOptions( SocketOptions options )
+	{
+		this.options = options;
+	}
+
 	public int[] getCounts()
 	{
 		int[] pooled = this.pool.getCounts();
@@ -52,6 +86,41 @@ public class ClientSocket
 		return new int[] { pooled[ 0 ], pooled[ 1 ], queued };
 	}
 
+	// Called from the thread pool when a new connection is established
+	void connected( Socket socket )
+	{
+		this.pool.add( socket );
+		this.connecting.decrementAndGet();
+		releaseSocket( socket );
+	}
+
+	// Called from the thread pool when a new connection could not be established
+	void connectFailed( IOException e )
+	{
+		this.connecting.decrementAndGet();
+		Loggers.nio.error( "Connect to " + this.hostname + ":" + this.port + " failed: " + e );
+
+		// Another connection picks up the queue, otherwise nothing would
+		if( this.connecting.get() > 0 || this.pool.size() > 0 )
+			return;
+
+		List<RequestWriter> failed;
+		synchronized( this.queue )
+		{
+			failed = new ArrayList<RequestWriter>( this.queue );
+			this.queue.clear();
+		}
+		for( RequestWriter writer : failed )
+			try
+			{
+				writer.failed( e );
+			}
+			catch( RuntimeException e1 )
+			{
+				Loggers.nio.debug( "Request writer failed", e1 );
+			}
+	}
+
 	// Only called by returnToPool()
 	public void releaseSocket( Socket socket )
 	{
@@ -83,7 +152,15 @@ public class ClientSocket
 		boolean complete = false;
 		try
 		{
-			writer.write( socket );
+			if( socket.isAutoBatch() )
+			{
+				// The flushes of the request writer go out together
+				socket.cork();
+				writer.write( socket );
+				socket.uncork();
+			}
+			else
+				writer.write( socket );
 			complete = true;
 		}
 		finally
@@ -102,22 +179,6 @@ public class ClientSocket
 			Loggers.nio.trace( "Channel ({}) From pool", socket.getDebugId() );
 		else
 		{
-			// TODO Maybe the pool should make the connections
-			// TODO Maybe we need a queue and the pool executes the queue when a connection is released
-			// FIXME This if should be synchronized
-			if( this.pool.size() + this.expand.availablePermits() >= this.maxConnections )
-			{
-				synchronized( this.queue )
-				{
-					if( this.queue.size() >= this.maxQueueSize )
-						throw new TooManyConnectionsException( "Queue is full" );
-					this.queue.addLast( writer );
-				}
-				Loggers.nio.trace( "Request added to queue" );
-				return;
-//				socket = this.pool.waitForSocket();
-			}
-
 			synchronized( this.queue )
 			{
 				if( this.queue.size() >= this.maxQueueSize )
@@ -126,46 +187,24 @@ public class ClientSocket
 			}
 			Loggers.nio.trace( "Request added to queue" );
 
-			this.expand.release();
+			// The new connection picks up the queue when it is established
+			if( reserveConnection() )
+				this.machine.connect( this, this.connectTimeout );
 			return;
 		}
 
 		request( socket, writer );
 	}
 
-	public void timeout()
+	private boolean reserveConnection()
 	{
-		this.pool.timeout();
-	}
-
-	public class ConnectingThread extends Thread
-	{
-		@Override
-		public void run()
+		while( true )
 		{
-			while( !isInterrupted() )
-			{
-				try
-				{
-					ClientSocket.this.expand.acquire();
-				}
-				catch( InterruptedException e1 )
-				{
-					throw new ThreadInterrupted();
-				}
-				try
-				{
-					Socket socket = ClientSocket.this.machine.connect( ClientSocket.this.hostname, ClientSocket.this.port );
-					ClientSocket.this.pool.add( socket );
-					socket.setClientSocket( ClientSocket.this );
-					releaseSocket( socket );
-				}
-				catch( ConnectException e )
-				{
-					ClientSocket.this.expand.drainPermits();
-					Loggers.nio.error( e.toString() );
-				}
-			}
+			int connecting = this.connecting.get();
+			if( this.pool.size() + connecting >= this.maxConnections )
+				return false;
+			if( this.connecting.compareAndSet( connecting, connecting + 1 ) )
+				return true;
 		}
 	}
 }
@@ -1,7 +1,17 @@
 package solidstack.nio;
 
+import java.io.IOException;
+
 
 public interface RequestWriter
 {
 	void write( Socket socket );
+
+	/**
+	 * Called instead of {@link #write(Socket)} when the request was queued and no connection could be established to
+	 * write it.
+	 *
+	 * @param e Why the connection failed.
+	 */
+	void failed( IOException e );
 }
@@ -1,38 +1,53 @@
 package solidstack.nio;
 
 import java.nio.channels.SelectionKey;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 
 
 public class ServerSocket
 {
-	private SocketMachine machine;
-	private SelectionKey key;
+	// One key for each bound channel, more than one when bound with SO_REUSEPORT
+	private List<SocketMachine> machines = new ArrayList<SocketMachine>();
+	private List<SelectionKey> keys = new ArrayList<SelectionKey>();
+	private boolean reusePort;
 
 	private int maxConnections;
 	private List<Socket> all = new LinkedList<Socket>();
 
 	private ResponseReader reader;
+	private SocketHandler handler;
+	private SocketOptions options = new SocketOptions();
 
 	private int debugId;
 
 
-	public ServerSocket( SocketMachine machine )
+	public ServerSocket( boolean reusePort )
 	{
-		this.machine = machine;
+		this.reusePort = reusePort;
 	}
 
-	void setKey( SelectionKey key )
+	synchronized void addKey( SocketMachine machine, SelectionKey key )
 	{
-		this.key = key;
-		this.debugId = DebugId.getId( key.channel() );
+		if( this.keys.isEmpty() )
+			this.debugId = DebugId.getId( key.channel() );
+		this.machines.add( machine );
+		this.keys.add( key );
+	}
+
+	/**
+	 * @return True if each machine accepts on its own channel, false if the accepted sockets need to be spread over the machines.
+	 */
+	boolean isReusePort()
+	{
+		return this.reusePort;
 	}
 
 	public void setReader( ResponseReader reader )
 	{
 		this.reader = reader;
-		this.machine.listenAccept( this.key );
+		listenAccept();
 	}
 
 	protected ResponseReader getReader()
@@ -40,18 +55,64 @@ public class ServerSocket
 		return this.reader;
 	}
 
+	/**
+	 * Puts the accepted sockets in event mode, see {@link Socket#setHandler(SocketHandler)}.
+	 *
+	 * @param handler The handler for the accepted sockets.
+	 */
+	public void setHandler( SocketHandler handler )
+	{
+		this.handler = handler;
+		listenAccept();
+	}
+
+	protected SocketHandler getHandler()
+	{
+		return this.handler;
+	}
+
+	/**
+	 * @return The options for the accepted sockets, which can be changed.
+	 */
+	public SocketOptions getOptions()
+	{
+		return this.options;
+	}
+
+	public void setOptions( SocketOptions options )
+	{
+		this.options = options;
+	}
+
+	/**
+	 * Stops listening. The bound channels are closed, the sockets that have been accepted stay open.
+	 */
+	synchronized public void close()
+	{
+		for( int i = 0; i < this.keys.size(); i++ )
+			this.machines.get( i ).unlisten( this.keys.get( i ) );
+		this.machines.clear();
+		this.keys.clear();
+	}
+
+	synchronized private void listenAccept()
+	{
+		for( int i = 0; i < this.keys.size(); i++ )
+			this.machines.get( i ).listenAccept( this.keys.get( i ) );
+	}
+
 	public void setMaxConnections( int maxConnections )
 	{
 		this.maxConnections = maxConnections;
 	}
 
-	// TODO Do we need synchronized?
-	public boolean canAccept()
+	// Synchronized, with SO_REUSEPORT multiple selector threads accept
+	synchronized public boolean canAccept()
 	{
 		return this.all.size() < this.maxConnections;
 	}
 
-	public void addSocket( Socket socket )
+	synchronized public void addSocket( Socket socket )
 	{
 		this.all.add( socket );
 		socket.setServerSocket( this );
@@ -62,7 +123,7 @@ public class ServerSocket
 		return this.debugId;
 	}
 
-	public void channelClosed( Socket socket )
+	synchronized public void channelClosed( Socket socket )
 	{
 //		Assert.isTrue( this.all.remove( socket ) ); TODO Enable
 		this.all.remove( socket );
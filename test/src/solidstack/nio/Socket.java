@@ -1,10 +1,13 @@
 package solidstack.nio;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.util.LinkedList;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import solidstack.httpserver.FatalSocketException;
 import solidstack.io.FatalIOException;
@@ -26,9 +29,22 @@ public class Socket implements Runnable
 
 	private ClientSocket clientSocket;
 	private ServerSocket serverSocket;
+	private Timeout connectTimeout;
 
 	private ResponseReader reader;
 	private AtomicBoolean running = new AtomicBoolean();
+	private boolean autoBatch; // See SocketOptions.setAutoBatch()
+	private Object attachment;
+	private AtomicInteger suspended = new AtomicInteger( NOT_SUSPENDED ); // See suspend() and resume()
+
+	static private final int NOT_SUSPENDED = 0;
+	static private final int SUSPENDING = 1; // The task is still running
+	static private final int SUSPENDED = 2;
+
+	// Event mode, see SocketHandler
+	private SocketHandler handler;
+	private AtomicReference<ByteBuffer> received = new AtomicReference<ByteBuffer>(); // Data the handler did not consume yet
+	private LinkedList<ByteBuffer> pending; // Data waiting to be written
 
 	private int debugId;
 	private AtomicInteger latch = new AtomicInteger( 0 ); // For assertions
@@ -49,6 +65,7 @@ public class Socket implements Runnable
 	{
 		this.key = key;
 		this.debugId = DebugId.getId( key.channel() );
+		this.machine.countOpened( this.server );
 	}
 
 	public void setClientSocket( ClientSocket clientSocket )
@@ -56,6 +73,21 @@ public class Socket implements Runnable
 		this.clientSocket = clientSocket;
 	}
 
+	ClientSocket getClientSocket()
+	{
+		return this.clientSocket;
+	}
+
+	void setConnectTimeout( Timeout connectTimeout )
+	{
+		this.connectTimeout = connectTimeout;
+	}
+
+	Timeout getConnectTimeout()
+	{
+		return this.connectTimeout;
+	}
+
 	public void setServerSocket( ServerSocket serverSocket )
 	{
 		this.serverSocket = serverSocket;
@@ -71,6 +103,64 @@ public class Socket implements Runnable
 		return this.reader;
 	}
 
+	/**
+	 * Puts this socket in event mode. The handler gets the events instead of a reader being called in a thread of the
+	 * pool.
+	 *
+	 * @param handler The handler.
+	 */
+	public void setHandler( SocketHandler handler )
+	{
+		this.handler = handler;
+		this.pending = new LinkedList<ByteBuffer>();
+	}
+
+	public SocketHandler getHandler()
+	{
+		return this.handler;
+	}
+
+	/**
+	 * Attaches an object to the socket, for example a parser that is reused for all the requests of the connection.
+	 *
+	 * @param attachment The object.
+	 */
+	public void attach( Object attachment )
+	{
+		this.attachment = attachment;
+	}
+
+	public Object attachment()
+	{
+		return this.attachment;
+	}
+
+	void setAutoBatch( boolean autoBatch )
+	{
+		this.autoBatch = autoBatch;
+	}
+
+	boolean isAutoBatch()
+	{
+		return this.autoBatch;
+	}
+
+	/**
+	 * Holds back the flushes of the output stream, see {@link SocketOutputStream#cork()}.
+	 */
+	public void cork()
+	{
+		this.out.cork();
+	}
+
+	/**
+	 * Writes what has been held back since {@link #cork()}.
+	 */
+	public void uncork()
+	{
+		this.out.uncork();
+	}
+
 	public int getDebugId()
 	{
 		return this.debugId;
@@ -134,8 +224,61 @@ public class Socket implements Runnable
 		this.running.set( false );
 	}
 
+	/**
+	 * Tells the socket that the current request continues asynchronously. The task ends without giving the socket back,
+	 * so that pipelined requests that are already buffered wait till {@link #resume()} is called. This keeps the
+	 * responses in the same order as the requests. Must be called from the task that runs the reader.
+	 */
+	public void suspend()
+	{
+		Assert.isTrue( this.suspended.compareAndSet( NOT_SUSPENDED, SUSPENDING ) );
+	}
+
+	/**
+	 * Continues with the next pipelined request, or gives the socket back when there is none. Can be called from any
+	 * thread, also before the task that called {@link #suspend()} has ended.
+	 */
+	public void resume()
+	{
+		if( this.suspended.compareAndSet( SUSPENDING, NOT_SUSPENDED ) )
+			return; // The task is still running, it will continue by itself
+		if( this.suspended.compareAndSet( SUSPENDED, NOT_SUSPENDED ) )
+			continueAfterSuspend();
+	}
+
+	// The task has ended while suspended, the latch is still acquired
+	private void continueAfterSuspend()
+	{
+		int available;
+		try
+		{
+			available = this.in.available();
+		}
+		catch( IOException e )
+		{
+			throw new FatalIOException( e );
+		}
+
+		if( isOpen() && available > 0 && !isRunningAndSet() )
+		{
+			getMachine().execute( this );
+			Loggers.nio.trace( "Channel ({}) Resumed with pipelined request", getDebugId() );
+		}
+		else
+		{
+			release();
+			Loggers.nio.trace( "Channel ({}) Resumed", getDebugId() );
+		}
+	}
+
 	void dataIsReady()
 	{
+		if( this.handler != null )
+		{
+			readEvent();
+			return;
+		}
+
 		// Not running -> not waiting -> no notify needed
 		if( !isRunningAndSet() )
 		{
@@ -146,19 +289,19 @@ public class Socket implements Runnable
 			return;
 		}
 
-		synchronized( this.in )
-		{
-			this.in.notify();
-		}
+		this.in.signalReadable();
 		Loggers.nio.trace( "Channel ({}) Signalled inputstream", getDebugId() );
 	}
 
 	void writeIsReady()
 	{
-		synchronized( this.out )
+		if( this.handler != null )
 		{
-			this.out.notify();
+			writeEvent();
+			return;
 		}
+
+		this.out.signalWritable();
 		Loggers.nio.trace( "Channel ({}) Signalled outputstream", getDebugId() );
 	}
 
@@ -204,6 +347,7 @@ public class Socket implements Runnable
 		if( isOpen() )
 		{
 			Loggers.nio.trace( "Channel ({}) Closed", getDebugId() );
+			this.machine.countClosed( this.server );
 			try
 			{
 				this.key.channel().close();
@@ -212,19 +356,153 @@ public class Socket implements Runnable
 			{
 				throw new FatalIOException( e );
 			}
+			if( this.handler != null )
+				this.handler.onClosed( this );
+
+			ByteBuffer received = this.received.getAndSet( null );
+			if( received != null )
+				this.machine.getBufferPool().release( received );
+
+			// Threads that wait for the channel would never be signalled anymore
+			this.in.signalReadable();
+			this.out.signalWritable();
+		}
+
+		// A running task is still using the buffers, it releases them when it ends
+		if( this.running.compareAndSet( false, true ) )
+			releaseBuffers();
+	}
+
+	private void releaseBuffers()
+	{
+		this.in.releaseBuffer();
+		this.out.releaseBuffer();
+	}
+
+	/**
+	 * Writes without blocking, only for sockets in event mode. What can not be written immediately is queued and written
+	 * when the channel becomes writable, after which {@link SocketHandler#onWritable(Socket)} is called.
+	 *
+	 * @param buffer The data to write.
+	 * @return True if everything has been written, false if some of it has been queued.
+	 * @throws IOException When writing to the channel fails.
+	 */
+	public boolean write( ByteBuffer buffer ) throws IOException
+	{
+		Assert.isTrue( this.handler != null, "Socket is not in event mode" );
+
+		synchronized( this.pending )
+		{
+			if( this.pending.isEmpty() )
+			{
+				this.machine.countWritten( getChannel().write( buffer ) );
+				if( !buffer.hasRemaining() )
+					return true;
+			}
+			ByteBuffer copy = ByteBuffer.allocate( buffer.remaining() );
+			copy.put( buffer );
+			copy.flip();
+			this.pending.addLast( copy );
+		}
+
+		this.machine.listenWrite( this.key );
+		return false;
+	}
+
+	// Only called by the selector thread
+	private void readEvent()
+	{
+		// Idle sockets do not keep a buffer, it is leased from the pool for the duration of the event
+		ByteBuffer buffer = this.received.getAndSet( null );
+		if( buffer == null )
+			buffer = this.machine.getBufferPool().lease( this.machine.getBufferSizing().getInitialSize() );
+		try
+		{
+			int read = getChannel().read( buffer );
+			if( read < 0 )
+			{
+				Loggers.nio.trace( "Channel ({}) Connection closed", getDebugId() );
+				close();
+				return;
+			}
+			if( read > 0 )
+			{
+				this.machine.countRead( read );
+				buffer.flip();
+				this.handler.onReadable( this, buffer );
+				if( buffer.hasRemaining() )
+				{
+					buffer.compact();
+					if( !buffer.hasRemaining() )
+					{
+						Loggers.nio.debug( "Channel ({}) Receive buffer full, handler does not consume", getDebugId() );
+						close();
+						return;
+					}
+					this.received.set( buffer ); // Kept till the next event
+					buffer = null;
+					if( !isOpen() && ( buffer = this.received.getAndSet( null ) ) == null )
+						return; // Closed in the mean time, close0() released it
+				}
+			}
+			if( isOpen() )
+				this.machine.listenRead( this.key );
+		}
+		catch( Exception e )
+		{
+			Loggers.nio.debug( "Channel ({}) Unhandled exception", getDebugId(), e );
+			close();
+		}
+		finally
+		{
+			if( buffer != null )
+				this.machine.getBufferPool().release( buffer );
+		}
+	}
+
+	// Only called by the selector thread
+	private void writeEvent()
+	{
+		try
+		{
+			synchronized( this.pending )
+			{
+				while( !this.pending.isEmpty() )
+				{
+					ByteBuffer buffer = this.pending.getFirst();
+					this.machine.countWritten( getChannel().write( buffer ) );
+					if( buffer.hasRemaining() )
+					{
+						this.machine.listenWrite( this.key );
+						return;
+					}
+					this.pending.removeFirst();
+				}
+			}
+			this.handler.onWritable( this );
+		}
+		catch( Exception e )
+		{
+			Loggers.nio.debug( "Channel ({}) Unhandled exception", getDebugId(), e );
+			close();
 		}
 	}
 
 	void returnToPool()
 	{
+		// Idle sockets do not need buffers, the streams lease new ones when the next request comes in
+		this.in.releaseIdleBuffer();
+		this.out.releaseIdleBuffer();
+
 		if( this.clientSocket != null )
 			this.clientSocket.releaseSocket( this );
-		this.machine.listenRead( this.key ); // TODO The socket needs to be reading, otherwise client disconnects do not come through
+		this.machine.listenIdle( this.key ); // TODO The socket needs to be reading, otherwise client disconnects do not come through
 	}
 
 	public void run()
 	{
 		boolean complete = false;
+		boolean suspend = false;
 		try
 		{
 			try
@@ -242,25 +520,29 @@ public class Socket implements Runnable
 			}
 
 			Loggers.nio.trace( "Channel ({}) Task started", getDebugId() );
+			if( this.autoBatch )
+				this.out.cork(); // The responses of pipelined requests go out together
 
 			while( true )
 			{
 				getReader().incoming( this );
 
-				if( isOpen() )
-				{
-					if( getInputStream().available() == 0 )
-					{
-						complete = true;
-						return;
-					}
-					Assert.fail( "Channel (" + getDebugId() + ") Shouldn't come here (yet): available = " + getInputStream().available() );
-				}
-				else
+				complete = true;
+				if( !isOpen() )
+					return;
+				if( this.suspended.get() != NOT_SUSPENDED )
 				{
-					complete = true;
+					suspend = true;
 					return;
 				}
+				if( getInputStream().available() == 0 )
+					return;
+				if( !this.server )
+					Assert.fail( "Channel (" + getDebugId() + ") Unexpected data after the response: available = " + getInputStream().available() );
+
+				// Pipelined request, it must be handled in this task to keep the responses in order
+				complete = false;
+				Loggers.nio.trace( "Channel ({}) Pipelined request", getDebugId() );
 			}
 		}
 		catch( Exception e )
@@ -269,12 +551,23 @@ public class Socket implements Runnable
 		}
 		finally
 		{
+			if( this.autoBatch && complete && isOpen() )
+				complete = flushBatch();
 			endOfRunning();
+			if( !isOpen() && this.running.compareAndSet( false, true ) )
+				releaseBuffers(); // Closed while running
 			if( !complete )
 			{
 				close();
 				Loggers.nio.trace( "Channel ({}) Thread aborted", getDebugId() );
 			}
+			else if( suspend )
+			{
+				if( this.suspended.compareAndSet( SUSPENDING, SUSPENDED ) )
+					Loggers.nio.trace( "Channel ({}) Thread suspended", getDebugId() );
+				else
+					continueAfterSuspend(); // Resumed while ending
+			}
 			else
 			{
 				release();
@@ -282,4 +575,19 @@ public class Socket implements Runnable
 			}
 		}
 	}
+
+	// Writes what the task has batched, returns false when that fails
+	private boolean flushBatch()
+	{
+		try
+		{
+			this.out.uncork();
+			return true;
+		}
+		catch( RuntimeException e )
+		{
+			Loggers.nio.debug( "Channel ({}) Unhandled exception", getDebugId(), e );
+			return false;
+		}
+	}
 }
@@ -0,0 +1,40 @@
+package solidstack.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+
+/**
+ * Event driven alternative to {@link ResponseReader}. The events are called by the selector thread, so they must never
+ * block. Data is written with {@link Socket#write(ByteBuffer)}, which does not block either.
+ *
+ * <p>A client socket is returned to the pool when the handler calls {@link Socket#release()} after the response has
+ * been received completely.</p>
+ *
+ * @author Ren M. de Bloois
+ */
+public interface SocketHandler
+{
+	/**
+	 * Called when data has been read. What the handler does not consume from the buffer is kept and passed again with
+	 * the next data.
+	 *
+	 * @param socket The socket.
+	 * @param buffer The data that has been read, ready to get.
+	 */
+	void onReadable( Socket socket, ByteBuffer buffer ) throws IOException;
+
+	/**
+	 * Called when the data queued by {@link Socket#write(ByteBuffer)} has been written completely.
+	 *
+	 * @param socket The socket.
+	 */
+	void onWritable( Socket socket ) throws IOException;
+
+	/**
+	 * Called when the socket has been closed. Can be called by any thread.
+	 *
+	 * @param socket The socket.
+	 */
+	void onClosed( Socket socket );
+}
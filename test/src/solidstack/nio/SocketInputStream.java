@@ -1,128 +1,303 @@
 package solidstack.nio;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import solidstack.httpserver.FatalSocketException;
 import solidstack.lang.Assert;
 
 
+// Only the task of the socket reads from this stream, and the buffer is only released when no task is running, see
+// Socket.run(). So there is no lock, the task waits for the selector thread with the Waiter.
 public class SocketInputStream extends InputStream
 {
 	private Socket handler;
-	private ByteBuffer buffer;
+	private SocketMachine machine;
+	private BufferPool pool;
+	private ByteBuffer buffer; // Leased when needed, null when the socket is idle
+	private AdaptiveBufferSize size;
+	private volatile boolean released; // Released for good, the socket is closed
+	private AtomicBoolean releasing = new AtomicBoolean(); // Only one thread at a time may release the buffer
+	private Waiter readable = new Waiter();
 
 	public SocketInputStream( Socket handler )
 	{
 		this.handler = handler;
-		this.buffer = ByteBuffer.allocate( 8192 );
-		this.buffer.flip();
+		this.machine = handler.getMachine();
+		this.pool = this.machine.getBufferPool();
+		this.size = new AdaptiveBufferSize( this.machine.getBufferSizing() );
 	}
 
 	@Override
-	synchronized public int read() throws IOException
+	public int read() throws IOException
 	{
-		if( this.handler == null )
+		ByteBuffer buffer = this.buffer;
+		if( buffer != null && buffer.hasRemaining() )
+			return buffer.get() & 0xFF;
+		if( !fill() )
 			return -1;
-		if( !this.buffer.hasRemaining() )
-		{
-			readChannel();
-			if( !this.buffer.hasRemaining() )
-				return -1;
-		}
-
-		return (char)this.buffer.get();
+		return this.buffer.get() & 0xFF;
 	}
 
+	/**
+	 * Reads bytes. When the buffer of the stream is empty and at least a buffer full is asked for, the bytes are read
+	 * from the channel directly into the array.
+	 */
 	@Override
-	synchronized public int read( byte[] b, int off, int len ) throws IOException
+	public int read( byte[] b, int off, int len ) throws IOException
 	{
-		if( this.handler == null )
+		if( len == 0 )
+			return 0;
+		if( isDrained() && len >= this.size.get() )
+			return read( ByteBuffer.wrap( b, off, len ) );
+		if( !fill() )
 			return -1;
-		if( !this.buffer.hasRemaining() )
-		{
-			readChannel();
-			if( !this.buffer.hasRemaining() )
-				return -1;
-		}
-
 		if( len > this.buffer.remaining() )
 			len = this.buffer.remaining();
 		this.buffer.get( b, off, len );
 		return len;
 	}
 
+	/**
+	 * Reads bytes into the given buffer. When the buffer of the stream is empty and the given buffer has room for at
+	 * least a buffer full, the bytes are read from the channel directly into the given buffer, with one system call.
+	 *
+	 * @param dst The buffer to read into.
+	 * @return The number of bytes read, -1 at the end of the stream.
+	 * @throws IOException When reading fails.
+	 */
+	public int read( ByteBuffer dst ) throws IOException
+	{
+		if( !dst.hasRemaining() )
+			return 0;
+		if( isDrained() && dst.remaining() >= this.size.get() )
+		{
+			if( this.handler == null || this.released )
+				return -1;
+			return readChannel( dst );
+		}
+		if( !fill() )
+			return -1;
+		int len = Math.min( dst.remaining(), this.buffer.remaining() );
+		ByteBuffer slice = this.buffer.slice();
+		slice.limit( len );
+		dst.put( slice );
+		this.buffer.position( this.buffer.position() + len );
+		return len;
+	}
+
 	@Override
-	synchronized public int available() throws IOException
+	public int available() throws IOException
 	{
+		if( this.buffer == null )
+			return 0;
 		return this.buffer.remaining();
 	}
 
-	synchronized public boolean endOfFile() throws IOException
+	/**
+	 * Gives the buffer of the stream to a parser that works on the bytes directly. The parser moves the position of the
+	 * buffer past the bytes it has consumed. Only for the task of the socket, and the buffer must not be kept.
+	 *
+	 * @return The buffer with at least one byte remaining, null at the end of the stream.
+	 */
+	public ByteBuffer getReadBuffer()
+	{
+		if( !fill() )
+			return null;
+		return this.buffer;
+	}
+
+	public boolean endOfFile() throws IOException
+	{
+		return !fill();
+	}
+
+	/**
+	 * Moves bytes from this socket to another socket without copying them. Each buffer read from this socket is written
+	 * by the other socket directly, and this socket is not read again before the buffer has been written, so a slow
+	 * receiver slows down the reading from this socket.
+	 *
+	 * @param out The output stream of the other socket.
+	 * @param count The number of bytes to move.
+	 * @throws IOException When writing to the other socket fails.
+	 * @throws EOFException When this socket ends before the given number of bytes has been moved.
+	 */
+	public void transferTo( SocketOutputStream out, long count ) throws IOException
+	{
+		while( count > 0 )
+		{
+			if( !fill() )
+				throw new EOFException( "Channel closed before all bytes were transferred" );
+			ByteBuffer slice = this.buffer.slice();
+			if( slice.remaining() > count )
+				slice.limit( (int)count );
+			int length = slice.remaining();
+			out.queue( slice );
+			out.flush(); // Returns when written, after that the buffer can be filled again
+			this.buffer.position( this.buffer.position() + length );
+			count -= length;
+		}
+	}
+
+	// Called by the selector thread when the channel has become readable, and when the socket is closed
+	void signalReadable()
 	{
-		if( this.buffer.hasRemaining() )
+		this.readable.signal();
+	}
+
+	// Returns the buffer to the pool for good, can be called more than once, not while the task is running
+	void releaseBuffer()
+	{
+		this.released = true;
+		if( !this.releasing.compareAndSet( false, true ) )
+			return; // The thread that releases the idle buffer releases it, see releaseIdleBuffer()
+		try
+		{
+			if( this.buffer != null )
+				release();
+		}
+		finally
+		{
+			this.releasing.set( false );
+		}
+	}
+
+	// Returns the buffer to the pool when it is empty, the next read leases a new one, not while the task is running.
+	// The socket can be closed at the same time, see releaseBuffer().
+	void releaseIdleBuffer()
+	{
+		if( !this.releasing.compareAndSet( false, true ) )
+			return; // Being released for good
+		try
+		{
+			if( this.buffer != null && !this.buffer.hasRemaining() )
+				release();
+		}
+		finally
+		{
+			this.releasing.set( false );
+		}
+		if( this.released )
+			releaseBuffer(); // Closed while releasing
+	}
+
+	private void lease()
+	{
+		this.buffer = this.pool.lease( this.size.get() );
+		this.machine.countBuffer( true, this.buffer.capacity() );
+	}
+
+	private void release()
+	{
+		this.machine.countBuffer( true, -this.buffer.capacity() );
+		this.pool.release( this.buffer );
+		this.buffer = null;
+	}
+
+	private boolean isDrained()
+	{
+		return this.buffer == null || !this.buffer.hasRemaining();
+	}
+
+	// Returns false at the end of the stream
+	private boolean fill()
+	{
+		if( this.buffer != null && this.buffer.hasRemaining() )
+			return true;
+		if( this.handler == null || this.released )
 			return false;
 		readChannel();
-		return !this.buffer.hasRemaining();
+		return this.buffer != null && this.buffer.hasRemaining();
 	}
 
 	// TODO Implement close()?
 
 	static private void logBuffer( int id, ByteBuffer buffer )
 	{
-		byte[] bytes = buffer.array();
-		Loggers.nio.trace( "Channel (" + id + ") " + new String( bytes, 0, buffer.limit() ) );
+		byte[] bytes = new byte[ buffer.limit() ];
+		ByteBuffer b = buffer.duplicate();
+		b.position( 0 );
+		b.get( bytes );
+		Loggers.nio.trace( "Channel (" + id + ") " + new String( bytes ) );
 	}
 
-	// TODO What if it read too much? Like when 2 requests are chained. The handler needs to keep reading.
 	private void readChannel()
+	{
+		if( this.buffer == null )
+			lease();
+		else
+		{
+			Assert.isFalse( this.buffer.hasRemaining() );
+			if( this.buffer.capacity() != this.size.get() )
+			{
+				release(); // Resized
+				lease();
+			}
+		}
+
+		this.buffer.clear();
+		int read = readChannel( this.buffer );
+		this.buffer.flip();
+		if( read > 0 )
+			this.machine.countResized( this.size.record( read ) );
+	}
+
+	// Reads at least 1 byte from the channel into the target, waits when nothing is available
+	private int readChannel( ByteBuffer target )
 	{
 		SocketChannel channel = this.handler.getChannel();
 		int id = DebugId.getId( channel );
-
-		Assert.isFalse( this.buffer.hasRemaining() );
 		Assert.isTrue( channel.isOpen() );
 
-		this.buffer.clear();
-
 		try
 		{
-			int read = channel.read( this.buffer );
+			int read = channel.read( target );
 			if( Loggers.nio.isTraceEnabled() )
 				Loggers.nio.trace( "Channel ({}) read #{} bytes from channel (1)", id, read );
 			while( read == 0 )
 			{
+				// The other side may be waiting for what a corked output stream holds back
+				this.handler.getOutputStream().flushHeld();
+
 				try
 				{
-					synchronized( this )
+					// Prevent losing a signal: prepare() must be called before listenRead()
+					this.readable.prepare();
+					this.handler.getMachine().listenRead( this.handler.getKey() );
+					// Closed before the prepare, the signal is lost and a cancelled key is never selected
+					if( this.released || !channel.isOpen() )
+						this.readable.cancel();
+					else
 					{
-						// Prevent losing a notify: listenRead() must be called within the synchronized block
-						this.handler.getMachine().listenRead( this.handler.getKey() );
-						Loggers.nio.trace( "Channel ({}) Input stream calls wait()", id, read );
-						wait();
+						Loggers.nio.trace( "Channel ({}) Input stream calls await()", id, read );
+						this.readable.await();
 					}
 				}
 				catch( InterruptedException e )
 				{
 					throw new FatalSocketException( e );
 				}
+				if( this.released || !channel.isOpen() )
+					throw new FatalSocketException( new ClosedChannelException() );
 
-				read = channel.read( this.buffer );
+				read = channel.read( target );
 				if( Loggers.nio.isTraceEnabled() )
 					Loggers.nio.trace( "Channel ({}) read #{} bytes from channel (2)", id, read );
 			}
 
-			this.buffer.flip();
-
+			if( read > 0 )
+				this.machine.countRead( read );
 			if( read == -1 )
 			{
 				this.handler.close(); // TODO This should cancel all keys
 				this.handler = null;
 			}
-//			else
-//				logBuffer( id, this.buffer );
+			return read;
 		}
 		catch( IOException e )
 		{
@@ -1,25 +1,41 @@
 package solidstack.nio;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.net.ConnectException;
 import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
 import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.channels.UnresolvedAddressException;
 import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
 
 import solidstack.io.FatalIOException;
 import solidstack.lang.Assert;
+import solidstack.lang.SystemException;
 import solidstack.lang.ThreadInterrupted;
 
 
@@ -29,20 +45,74 @@ public class SocketMachine extends Thread
 
 	private Selector selector;
 	private Object lock = new Object(); // Used to sequence socket creation and registration
-	private ThreadPoolExecutor executor;
+	private ExecutorService executor;
+	private SocketMachineGroup group; // Null when running standalone
+	private BufferPool bufferPool = BufferPool.getShared();
+	private BufferSizing bufferSizing = BufferSizing.DEFAULT;
+
+	private TimingWheel timeouts = new TimingWheel( System.currentTimeMillis() );
+	private List<Timeout> expired = new ArrayList<Timeout>();
+	private volatile long selectUntil; // Till when the selector thread sleeps, timeouts before that need a wakeup
 
-	// TODO Build the timeouts on the keys?
-	private Map<ResponseReader, Timeout> timeouts = new LinkedHashMap<ResponseReader, Timeout>(); // TODO Use DelayQueue or other form of concurrent datastructure
-	private long nextTimeout;
-	private int timeoutAdded;
-	private int timeoutRemoved;
+	// Interest ops are only changed by the selector thread, other threads queue their changes
+	private ConcurrentLinkedQueue<InterestChange> interestChanges = new ConcurrentLinkedQueue<InterestChange>();
+	private AtomicBoolean wakeupPending = new AtomicBoolean();
+
+	// Backpressure: when the executor rejects tasks, accepts and reads of idle sockets are held back
+	private ConcurrentLinkedQueue<Runnable> deferred = new ConcurrentLinkedQueue<Runnable>();
+	private volatile boolean saturated;
+	private boolean throttling; // Only used by the selector thread
+	private List<InterestChange> throttled = new ArrayList<InterestChange>(); // Only used by the selector thread
+	private List<SelectionKey> serverKeys = new ArrayList<SelectionKey>();
+	private AtomicInteger deferredCount = new AtomicInteger();
+	private volatile int saturatedCount;
+	private volatile int recoveredCount;
 
-	private List<ClientSocket> clientSockets = new ArrayList<ClientSocket>();
 	// TODO Add the ServerSocket to process inactive sockets
 
 	private long nextLogging;
 
+	// Metrics, only written by the selector thread
+	private volatile long loops;
+	private volatile long selectedKeys;
+	private volatile long busyNanos;
+
+	// Metrics, written by any thread
+	private StripedCounter wakeups = new StripedCounter();
+	private StripedCounter serverOpened = new StripedCounter();
+	private StripedCounter serverClosed = new StripedCounter();
+	private StripedCounter clientOpened = new StripedCounter();
+	private StripedCounter clientClosed = new StripedCounter();
+	private StripedCounter bytesRead = new StripedCounter();
+	private StripedCounter bytesWritten = new StripedCounter();
+	private StripedCounter readBuffers = new StripedCounter();
+	private StripedCounter readBufferBytes = new StripedCounter();
+	private StripedCounter writeBuffers = new StripedCounter();
+	private StripedCounter writeBufferBytes = new StripedCounter();
+	private StripedCounter buffersGrown = new StripedCounter();
+	private StripedCounter buffersShrunk = new StripedCounter();
+
+	private ObjectName objectName;
+
+	// Busy poll, the spin budget adapts between a 16th of the maximum and the maximum
+	private volatile long maxSpinNanos; // 0 means no busy polling
+	private long spinNanos; // Only used by the selector thread
+	private volatile boolean spinning; // No wakeups needed while spinning
+
 	public SocketMachine()
+	{
+		this( Executors.newCachedThreadPool() );
+	}
+
+	/**
+	 * @param executor The executor that runs the socket tasks, for example one created by {@link #newVirtualThreadExecutor()}.
+	 */
+	public SocketMachine( ExecutorService executor )
+	{
+		this( null, executor );
+	}
+
+	SocketMachine( SocketMachineGroup group, ExecutorService executor )
 	{
 		super( "SocketMachine-" + nextId() );
 		setPriority( NORM_PRIORITY + 1 );
@@ -55,7 +125,8 @@ public class SocketMachine extends Thread
 		{
 			throw new FatalIOException( e );
 		}
-		this.executor = (ThreadPoolExecutor)Executors.newCachedThreadPool();
+		this.group = group;
+		this.executor = executor;
 	}
 
 	synchronized static private int nextId()
@@ -63,40 +134,171 @@ public class SocketMachine extends Thread
 		return ++threadId;
 	}
 
-	public void execute( Runnable command )
+	/**
+	 * Creates an executor that runs each task in its own virtual thread. Needs a Java 21 or higher runtime.
+	 *
+	 * @return The executor.
+	 * @throws UnsupportedOperationException When the runtime does not support virtual threads.
+	 */
+	static public ExecutorService newVirtualThreadExecutor()
 	{
-		// The DefaultThreadFactory will set the priority to NORM_PRIORITY, so no inheritance of the heightened priority of the dispatcher thread.
-		this.executor.execute( command );
+		try
+		{
+			Method method = Executors.class.getMethod( "newVirtualThreadPerTaskExecutor" );
+			return (ExecutorService)method.invoke( null );
+		}
+		catch( NoSuchMethodException e )
+		{
+			throw new UnsupportedOperationException( "Virtual threads are not supported by this Java runtime" );
+		}
+		catch( IllegalAccessException e )
+		{
+			throw new SystemException( e );
+		}
+		catch( InvocationTargetException e )
+		{
+			throw new SystemException( e.getCause() );
+		}
 	}
 
-	public ServerSocket listen( InetSocketAddress address ) throws IOException
+	/**
+	 * Creates an executor with a fixed maximum number of threads and a bounded queue. When it is full, the machine stops
+	 * accepting connections and stops reading from idle sockets until the queue is half empty again.
+	 *
+	 * @param threads The maximum number of threads.
+	 * @param queueSize The maximum number of tasks waiting for a thread.
+	 * @return The executor.
+	 */
+	static public ThreadPoolExecutor newBoundedExecutor( int threads, int queueSize )
 	{
-		return listen( address, 50 );
+		ThreadPoolExecutor result = new ThreadPoolExecutor( threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>( queueSize ) );
+		result.allowCoreThreadTimeOut( true );
+		return result;
 	}
 
-	public ServerSocket listen( InetSocketAddress address, int backlog ) throws IOException
+	public SocketMachineGroup getGroup()
 	{
-		ServerSocketChannel server = ServerSocketChannel.open();
-		server.configureBlocking( false );
-		server.socket().bind( address, backlog );
+		return this.group;
+	}
 
-		ServerSocket socket = new ServerSocket( this );
+	public BufferPool getBufferPool()
+	{
+		return this.bufferPool;
+	}
+
+	/**
+	 * Sets the bounds of the buffer sizes of the socket streams. Sockets that are already created keep the old bounds.
+	 *
+	 * @param bufferSizing The bounds.
+	 */
+	public void setBufferSizing( BufferSizing bufferSizing )
+	{
+		this.bufferSizing = bufferSizing;
+	}
+
+	public BufferSizing getBufferSizing()
+	{
+		return this.bufferSizing;
+	}
+
+	// Selects the machine that gets the next new channel
+	private SocketMachine next()
+	{
+		if( this.group != null )
+			return this.group.next();
+		return this;
+	}
+
+	public void execute( Runnable command )
+	{
+		// Keep the order, the selector thread hands the deferred tasks to the executor when it has room again
+		if( !this.deferred.isEmpty() )
+		{
+			defer( command );
+			return;
+		}
 
 		try
 		{
-			SelectionKey key;
-			synchronized( this.lock ) // Prevent register from blocking again
-			{
-				this.selector.wakeup();
-				key = server.register( this.selector, 0 );
-			}
-			socket.setKey( key );
-			key.attach( socket );
+			// The DefaultThreadFactory will set the priority to NORM_PRIORITY, so no inheritance of the heightened priority of the dispatcher thread.
+			this.executor.execute( command );
 		}
-		catch( IOException e )
+		catch( RejectedExecutionException e )
 		{
-			throw new FatalIOException( e );
+			if( this.executor.isShutdown() )
+				throw e;
+			defer( command );
+		}
+	}
+
+	private void defer( Runnable command )
+	{
+		this.deferred.add( command );
+		this.deferredCount.incrementAndGet();
+		if( !this.saturated )
+		{
+			this.saturated = true;
+			if( Thread.currentThread() != this )
+				wakeupIfParked();
 		}
+	}
+
+	private void wakeup()
+	{
+		this.wakeups.increment();
+		this.selector.wakeup();
+	}
+
+	// The spinning selector thread sees the queued work by itself
+	private void wakeupIfParked()
+	{
+		if( !this.spinning )
+			wakeup();
+	}
+
+	/**
+	 * Enables busy polling. Before blocking in select(), the selector thread keeps polling with selectNow() for at most
+	 * the given time. This avoids the wakeups and context switches on the request path, at the cost of a core. The
+	 * actual spin time adapts to the rate of the events: it doubles when an event arrives while spinning and halves when
+	 * the spinning was for nothing.
+	 *
+	 * <p>On a single processor this method does nothing, it only logs that busy polling is not enabled. The spinning
+	 * would only delay the threads it is waiting for.</p>
+	 *
+	 * @param micros The maximum number of microseconds to spin, 0 to disable busy polling.
+	 */
+	public void setBusyPoll( int micros )
+	{
+		if( micros > 0 && Runtime.getRuntime().availableProcessors() < 2 )
+		{
+			Loggers.nio.info( "Single processor, busy polling not enabled" );
+			return;
+		}
+		this.maxSpinNanos = micros * 1000L;
+	}
+
+	public boolean isSaturated()
+	{
+		return this.saturated;
+	}
+
+	/**
+	 * @return The number of times the machine got saturated, recovered, and the number of tasks that had to be deferred.
+	 */
+	public int[] getSaturationCounts()
+	{
+		return new int[] { this.saturatedCount, this.recoveredCount, this.deferredCount.get() };
+	}
+
+	public ServerSocket listen( InetSocketAddress address ) throws IOException
+	{
+		return listen( address, 50 );
+	}
+
+	public ServerSocket listen( InetSocketAddress address, int backlog ) throws IOException
+	{
+		ServerSocket socket = new ServerSocket( false );
+		listen( socket, address, backlog, false );
 
 		//		synchronized( this.lock ) // Prevent register from blocking again
 //		{
@@ -108,84 +310,259 @@ public class SocketMachine extends Thread
 		return socket;
 	}
 
-	public ClientSocket createClientSocket( String hostname, int port )
+	// Binds a new channel and adds it to the server socket
+	void listen( ServerSocket socket, InetSocketAddress address, int backlog, boolean reusePort ) throws IOException
 	{
-		return new ClientSocket( hostname, port, this );
+		ServerSocketChannel server = ServerSocketChannel.open();
+		boolean registered = false;
+		try
+		{
+			server.configureBlocking( false );
+			if( reusePort )
+				setReusePort( server );
+			server.socket().bind( address, backlog );
+
+			SelectionKey key = register( server, 0 );
+			key.attach( socket );
+			socket.addKey( this, key );
+			synchronized( this.serverKeys )
+			{
+				this.serverKeys.add( key );
+			}
+			registered = true;
+		}
+		finally
+		{
+			if( !registered )
+				closeFailed( server ); // Otherwise it keeps holding the port
+		}
 	}
 
-	public void listenAccept( SelectionKey key )
+	// Stops listening on the channel of the given key, see ServerSocket.close()
+	void unlisten( SelectionKey key )
 	{
-		boolean yes = false;
-		synchronized( key )
+		synchronized( this.serverKeys )
 		{
-			int i = key.interestOps();
-			if( ( i & SelectionKey.OP_ACCEPT ) == 0 )
-			{
-				key.interestOps( i | SelectionKey.OP_ACCEPT );
-				yes = true;
-			}
+			this.serverKeys.remove( key );
 		}
+		key.cancel();
+		closeFailed( key.channel() );
+		wakeup(); // The channel is only released by the next select
+	}
 
-		if( yes )
+	/**
+	 * @return True if the Java runtime supports SO_REUSEPORT, which needs Java 9 or higher. The operating system may still
+	 *         reject it.
+	 */
+	static public boolean isReusePortSupported()
+	{
+		try
 		{
-			key.selector().wakeup();
-			if( Loggers.nio.isTraceEnabled() )
-				Loggers.nio.trace( "Channel ({}) Listening to accept", DebugId.getId( key.channel() ) );
+			Class.forName( "java.net.StandardSocketOptions" ).getField( "SO_REUSEPORT" );
+			return true;
+		}
+		catch( ClassNotFoundException e )
+		{
+			return false;
+		}
+		catch( NoSuchFieldException e )
+		{
+			return false;
 		}
 	}
 
+	// Uses reflection, SO_REUSEPORT and setOption() do not exist in Java 6
+	static private void setReusePort( ServerSocketChannel channel ) throws IOException
+	{
+		if( !isReusePortSupported() )
+			throw new UnsupportedOperationException( "SO_REUSEPORT is not supported by this Java runtime" );
+		try
+		{
+			Object option = Class.forName( "java.net.StandardSocketOptions" ).getField( "SO_REUSEPORT" ).get( null );
+			Method method = ServerSocketChannel.class.getMethod( "setOption", Class.forName( "java.net.SocketOption" ), Object.class );
+			method.invoke( channel, option, Boolean.TRUE );
+		}
+		catch( InvocationTargetException e )
+		{
+			if( e.getCause() instanceof IOException )
+				throw (IOException)e.getCause();
+			if( e.getCause() instanceof UnsupportedOperationException ) // Operating system does not support it
+				throw (UnsupportedOperationException)e.getCause();
+			throw new SystemException( e.getCause() );
+		}
+		catch( Exception e )
+		{
+			throw new SystemException( e );
+		}
+	}
+
+	public ClientSocket createClientSocket( String hostname, int port )
+	{
+		return new ClientSocket( hostname, port, this );
+	}
+
+	public void listenAccept( SelectionKey key )
+	{
+		listen( key, SelectionKey.OP_ACCEPT );
+	}
+
 	public void listenRead( SelectionKey key )
 	{
-		boolean yes = false;
-		synchronized( key )
+		listen( key, SelectionKey.OP_READ );
+	}
+
+	public void listenWrite( SelectionKey key )
+	{
+		listen( key, SelectionKey.OP_WRITE );
+	}
+
+	/**
+	 * Listen to read on a socket that is waiting for a new request. This is held back while the machine is saturated.
+	 *
+	 * @param key The key of the socket.
+	 */
+	public void listenIdle( SelectionKey key )
+	{
+		listen( key, SelectionKey.OP_READ, true );
+	}
+
+	void listen( SelectionKey key, int ops )
+	{
+		listen( key, ops, false );
+	}
+
+	private void listen( SelectionKey key, int ops, boolean idle )
+	{
+		if( Thread.currentThread() == this )
+		{
+			interest( key, ops, idle );
+			return;
+		}
+
+		this.interestChanges.add( new InterestChange( key, ops, idle ) );
+
+		// One wakeup is enough for all the changes that are queued before the selector thread drains the queue
+		if( this.wakeupPending.compareAndSet( false, true ) )
+			wakeupIfParked();
+	}
+
+	// Only called by the selector thread
+	private void interest( SelectionKey key, int ops, boolean idle )
+	{
+		if( this.throttling && ( idle || ops == SelectionKey.OP_ACCEPT ) )
+		{
+			this.throttled.add( new InterestChange( key, ops, idle ) );
+			return;
+		}
+
+		try
 		{
 			int i = key.interestOps();
-			if( ( i & SelectionKey.OP_READ ) == 0 )
-			{
-				key.interestOps( i | SelectionKey.OP_READ );
-				yes = true;
-			}
+			if( ( i & ops ) == ops )
+				return;
+			key.interestOps( i | ops );
+		}
+		catch( CancelledKeyException e )
+		{
+			return;
 		}
 
-		if( yes )
+		if( Loggers.nio.isTraceEnabled() )
 		{
-			// TODO Can we reduce the wakeups a lot?
-			key.selector().wakeup();
-			if( Loggers.nio.isTraceEnabled() )
-				Loggers.nio.trace( "Channel ({}) Listening to read", DebugId.getId( key.channel() ) );
+			String s = ops == SelectionKey.OP_READ ? "read" : ops == SelectionKey.OP_WRITE ? "write" : ops == SelectionKey.OP_CONNECT ? "connect" : "accept";
+			Loggers.nio.trace( "Channel ({}) Listening to " + s, DebugId.getId( key.channel() ) );
 		}
 	}
 
-	public void listenWrite( SelectionKey key )
+	// Only called by the selector thread
+	private void applyInterestChanges()
+	{
+		InterestChange change;
+		while( ( change = this.interestChanges.poll() ) != null )
+			interest( change.key, change.ops, change.idle );
+	}
+
+	// Only called by the selector thread
+	private void applyBackpressure()
 	{
-		boolean yes = false;
-		synchronized( key )
+		if( this.saturated && !this.throttling )
 		{
-			int i = key.interestOps();
-			if( ( i & SelectionKey.OP_WRITE ) == 0 )
+			this.throttling = true;
+			this.saturatedCount++;
+			Loggers.nio.debug( "Executor saturated, not accepting connections" );
+
+			synchronized( this.serverKeys )
 			{
-				key.interestOps( i | SelectionKey.OP_WRITE );
-				yes = true;
+				for( SelectionKey key : this.serverKeys )
+					try
+					{
+						int i = key.interestOps();
+						if( ( i & SelectionKey.OP_ACCEPT ) != 0 )
+						{
+							key.interestOps( i & ~SelectionKey.OP_ACCEPT );
+							this.throttled.add( new InterestChange( key, SelectionKey.OP_ACCEPT, false ) );
+						}
+					}
+					catch( CancelledKeyException e )
+					{
+						// Ignore
+					}
+			}
+		}
+
+		if( !this.throttling )
+			return;
+
+		// Hand the deferred tasks to the executor as long as it takes them
+		Runnable command;
+		while( ( command = this.deferred.peek() ) != null )
+		{
+			try
+			{
+				this.executor.execute( command );
 			}
+			catch( RejectedExecutionException e )
+			{
+				return;
+			}
+			this.deferred.poll();
 		}
 
-		if( yes )
+		// Reset first, a task that is deferred after this will set it again
+		this.saturated = false;
+		if( !this.deferred.isEmpty() || !hasCapacity() )
 		{
-			key.selector().wakeup();
-			if( Loggers.nio.isTraceEnabled() )
-				Loggers.nio.trace( "Channel ({}) Listening to write", DebugId.getId( key.channel() ) );
+			this.saturated = true;
+			return;
 		}
+
+		this.throttling = false;
+		this.recoveredCount++;
+		Loggers.nio.debug( "Executor recovered, resuming {} accepts and reads", this.throttled.size() );
+
+		for( InterestChange change : this.throttled )
+			interest( change.key, change.ops, false );
+		this.throttled.clear();
+	}
+
+	// The queue of the executor needs to be at most half full to stop throttling
+	private boolean hasCapacity()
+	{
+		if( !( this.executor instanceof ThreadPoolExecutor ) )
+			return true;
+		BlockingQueue<Runnable> queue = ( (ThreadPoolExecutor)this.executor ).getQueue();
+		return queue.size() <= queue.remainingCapacity();
 	}
 
 	public Socket connect( String hostname, int port ) throws ConnectException
 	{
-		Socket socket = new Socket( false, this );
+		Socket socket = new Socket( false, next() );
 		connect( hostname, port, socket );
 		Loggers.nio.trace( "Channel ({}) New" , socket.getDebugId() );
 		return socket;
 	}
 
-	private void connect( String hostname, int port, Socket socket ) throws ConnectException
+	static private void connect( String hostname, int port, Socket socket ) throws ConnectException
 	{
 		SocketChannel channel;
 		try
@@ -203,50 +580,368 @@ public class SocketMachine extends Thread
 		try
 		{
 			channel.configureBlocking( false );
-			SelectionKey key;
+		}
+		catch( IOException e )
+		{
+			closeFailed( channel );
+			throw new FatalIOException( e );
+		}
+		SelectionKey key = socket.getMachine().register( channel, SelectionKey.OP_READ );
+		socket.setKey( key );
+		key.attach( socket );
+	}
+
+	/**
+	 * Connects without blocking. The client socket is called back from the thread pool with
+	 * {@link ClientSocket#connected(Socket)} or {@link ClientSocket#connectFailed(IOException)}.
+	 *
+	 * @param clientSocket The client socket that gets the new socket.
+	 * @param timeout The connect timeout in milliseconds.
+	 */
+	public void connect( ClientSocket clientSocket, int timeout )
+	{
+		SocketMachine machine = next();
+		Socket socket = new Socket( false, machine );
+		socket.setClientSocket( clientSocket );
+		socket.setAutoBatch( clientSocket.getOptions().isAutoBatch() );
+		if( clientSocket.getHandler() != null )
+			socket.setHandler( clientSocket.getHandler() );
+
+		SocketChannel channel = null;
+		boolean connected;
+		try
+		{
+			channel = SocketChannel.open();
+			channel.configureBlocking( false );
+			clientSocket.getOptions().apply( channel );
+			connected = channel.connect( new InetSocketAddress( clientSocket.hostname, clientSocket.port ) );
+		}
+		catch( IOException e )
+		{
+			closeFailed( channel );
+			connectFailed( clientSocket, e );
+			return;
+		}
+		catch( UnresolvedAddressException e )
+		{
+			closeFailed( channel );
+			connectFailed( clientSocket, new UnknownHostException( clientSocket.hostname ) );
+			return;
+		}
+		catch( RuntimeException e )
+		{
+			closeFailed( channel );
+			connectFailed( clientSocket, new IOException( e ) );
+			return;
+		}
+
+		SelectionKey key = machine.register( channel, 0 );
+		socket.setKey( key );
+		key.attach( socket );
+		Loggers.nio.trace( "Channel ({}) New, connecting" , socket.getDebugId() );
+
+		if( connected )
+		{
+			machine.listenRead( key );
+			connected( socket );
+			return;
+		}
+
+		socket.setConnectTimeout( new ConnectTimeout( socket, System.currentTimeMillis() + timeout ) );
+		machine.addTimeout( socket.getConnectTimeout() );
+		machine.listen( key, SelectionKey.OP_CONNECT );
+	}
+
+	// Only called by the selector thread
+	private void finishConnect( SelectionKey key, Socket socket )
+	{
+		try
+		{
+			if( !( (SocketChannel)key.channel() ).finishConnect() )
+				return;
+		}
+		catch( IOException e )
+		{
+			removeTimeout( socket.getConnectTimeout() );
+			abortConnect( socket, e );
+			return;
+		}
+
+		removeTimeout( socket.getConnectTimeout() );
+		socket.setConnectTimeout( null );
+		key.interestOps( SelectionKey.OP_READ ); // Reading detects a disconnect while the socket is pooled
+		Loggers.nio.trace( "Channel ({}) Connected", socket.getDebugId() );
+		connected( socket );
+	}
+
+	// Closes the channel of a connect or listen that failed, or of a listen that stopped
+	static private void closeFailed( SelectableChannel channel )
+	{
+		if( channel == null )
+			return;
+		try
+		{
+			channel.close();
+		}
+		catch( IOException e )
+		{
+			Loggers.nio.debug( "Close failed", e );
+		}
+	}
+
+	// Only called by the selector thread
+	void abortConnect( Socket socket, IOException e )
+	{
+		Loggers.nio.trace( "Channel ({}) Connect failed", socket.getDebugId() );
+		countClosed( false );
+		socket.getKey().cancel();
+		try
+		{
+			socket.getKey().channel().close();
+		}
+		catch( IOException e1 )
+		{
+			Loggers.nio.debug( "Channel ({}) Close failed", socket.getDebugId(), e1 );
+		}
+		connectFailed( socket.getClientSocket(), e );
+	}
+
+	// The callbacks run in the thread pool, they may block on writing the queued requests
+	private void connected( final Socket socket )
+	{
+		execute( new Runnable()
+		{
+			public void run()
+			{
+				socket.getClientSocket().connected( socket );
+			}
+		} );
+	}
+
+	private void connectFailed( final ClientSocket clientSocket, final IOException e )
+	{
+		execute( new Runnable()
+		{
+			public void run()
+			{
+				clientSocket.connectFailed( e );
+			}
+		} );
+	}
+
+	SelectionKey register( SelectableChannel channel, int ops )
+	{
+		try
+		{
+			if( Thread.currentThread() == this )
+				return channel.register( this.selector, ops );
+
 			synchronized( this.lock ) // Prevent register from blocking again
 			{
-				this.selector.wakeup();
-				key = channel.register( this.selector, SelectionKey.OP_READ );
+				wakeup();
+				return channel.register( this.selector, ops );
 			}
-			socket.setKey( key );
-			key.attach( socket );
 		}
-		catch( IOException e )
+		catch( ClosedChannelException e )
 		{
 			throw new FatalIOException( e );
 		}
 	}
 
-	public void addTimeout( ResponseReader listener, Socket handler, long when )
+	public Timeout addTimeout( ResponseReader listener, Socket handler, long when )
+	{
+		Timeout timeout = new Timeout( listener, handler, when );
+		addTimeout( timeout );
+		return timeout;
+	}
+
+	public void addTimeout( Timeout timeout )
+	{
+		this.timeouts.schedule( timeout );
+		if( timeout.getWhen() < this.selectUntil && Thread.currentThread() != this )
+			wakeupIfParked();
+	}
+
+	/**
+	 * Cancels the timeout.
+	 *
+	 * @param timeout The timeout to cancel.
+	 * @return False if the timeout already fired, true otherwise.
+	 */
+	public boolean removeTimeout( Timeout timeout )
+	{
+		return this.timeouts.cancel( timeout );
+	}
+
+	/**
+	 * @return The number of timeouts added, removed and fired.
+	 */
+	public int[] getTimeouts()
 	{
-		synchronized( this.timeouts )
+		return this.timeouts.getCounts();
+	}
+
+	// Only called by the selector thread
+	private int spin( long delay ) throws IOException
+	{
+		long max = this.maxSpinNanos;
+		long min = max / 16;
+		if( this.spinNanos < min )
+			this.spinNanos = min;
+		else if( this.spinNanos > max )
+			this.spinNanos = max;
+
+		long start = System.nanoTime();
+		this.spinning = true;
+		try
 		{
-			this.timeouts.put( listener, new Timeout( listener, handler, when ) );
-			this.timeoutAdded ++;
+			do
+			{
+				int selected = this.selector.selectNow();
+				if( selected > 0 || hasWork() )
+				{
+					this.spinNanos = Math.min( this.spinNanos * 2, max );
+					return selected;
+				}
+			}
+			while( System.nanoTime() - start < this.spinNanos );
+		}
+		finally
+		{
+			this.spinning = false;
 		}
+
+		this.spinNanos = Math.max( this.spinNanos / 2, min );
+
+		// Work queued before spinning was reset did not wake up the selector
+		if( hasWork() )
+			return this.selector.selectNow();
+		return this.selector.select( delay );
+	}
+
+	// Work queued by other threads for the selector thread
+	private boolean hasWork()
+	{
+		return !this.interestChanges.isEmpty() || this.timeouts.hasScheduled() || this.saturated && !this.throttling;
+	}
+
+	void countOpened( boolean server )
+	{
+		( server ? this.serverOpened : this.clientOpened ).increment();
 	}
 
-	public void removeTimeout( ResponseReader listener )
+	void countClosed( boolean server )
 	{
-		synchronized( this.timeouts )
+		( server ? this.serverClosed : this.clientClosed ).increment();
+	}
+
+	void countRead( int bytes )
+	{
+		this.bytesRead.add( bytes );
+	}
+
+	void countWritten( long bytes )
+	{
+		this.bytesWritten.add( bytes );
+	}
+
+	// Called with a negative size when the buffer is released
+	void countBuffer( boolean read, int size )
+	{
+		( read ? this.readBuffers : this.writeBuffers ).add( size > 0 ? 1 : -1 );
+		( read ? this.readBufferBytes : this.writeBufferBytes ).add( size );
+	}
+
+	void countResized( int change )
+	{
+		if( change > 0 )
+			this.buffersGrown.increment();
+		else if( change < 0 )
+			this.buffersShrunk.increment();
+	}
+
+	/**
+	 * @return A snapshot of the metrics of this machine.
+	 */
+	public SocketMachineMetrics getMetrics()
+	{
+		SocketMachineMetrics result = new SocketMachineMetrics();
+		result.loops = this.loops;
+		result.selectedKeys = this.selectedKeys;
+		result.wakeups = this.wakeups.get();
+		result.busyTime = this.busyNanos / 1000000;
+
+		if( this.executor instanceof ThreadPoolExecutor )
+		{
+			ThreadPoolExecutor executor = (ThreadPoolExecutor)this.executor;
+			result.executorActive = executor.getActiveCount();
+			result.executorQueued = executor.getQueue().size();
+			result.executorLargest = executor.getLargestPoolSize();
+		}
+		else
+			result.executorActive = result.executorQueued = result.executorLargest = -1;
+
+		synchronized( this.serverKeys )
 		{
-			this.timeouts.remove( listener );
-			this.timeoutRemoved ++;
+			result.listeningSockets = this.serverKeys.size();
 		}
+		result.serverSockets = (int)( this.serverOpened.get() - this.serverClosed.get() );
+		result.clientSockets = (int)( this.clientOpened.get() - this.clientClosed.get() );
+
+		int[] timeouts = this.timeouts.getCounts();
+		result.timeoutsScheduled = timeouts[ 0 ];
+		result.timeoutsCancelled = timeouts[ 1 ];
+		result.timeoutsFired = timeouts[ 2 ];
+
+		result.bytesRead = this.bytesRead.get();
+		result.bytesWritten = this.bytesWritten.get();
+
+		long[] buffers = this.bufferPool.getCounts();
+		result.buffersLeased = buffers[ 0 ];
+		result.buffersPooled = buffers[ 1 ];
+		result.bufferMemory = buffers[ 2 ];
+
+		result.bufferSizing = this.bufferSizing.toString();
+		result.readBuffers = this.readBuffers.get();
+		result.readBufferBytes = this.readBufferBytes.get();
+		result.writeBuffers = this.writeBuffers.get();
+		result.writeBufferBytes = this.writeBufferBytes.get();
+		result.buffersGrown = this.buffersGrown.get();
+		result.buffersShrunk = this.buffersShrunk.get();
+		return result;
 	}
 
-	public int[] getTimeouts()
+	/**
+	 * Registers a {@link SocketMachineMXBean} for this machine with the platform MBean server. It is unregistered when
+	 * the machine ends.
+	 */
+	public void registerMBean()
 	{
-		return new int[] { this.timeoutAdded, this.timeoutRemoved };
+		try
+		{
+			ObjectName name = new ObjectName( "solidstack.nio:type=SocketMachine,name=" + getName() );
+			ManagementFactory.getPlatformMBeanServer().registerMBean( new StandardMBean( new LiveMetrics( this ), SocketMachineMXBean.class, true ), name );
+			this.objectName = name;
+		}
+		catch( JMException e )
+		{
+			throw new SystemException( e );
+		}
 	}
 
-	public void registerClientSocket( ClientSocket socket )
+	private void unregisterMBean()
 	{
-		synchronized( this.clientSockets )
+		if( this.objectName == null )
+			return;
+		try
 		{
-			this.clientSockets.add( socket );
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean( this.objectName );
 		}
+		catch( JMException e )
+		{
+			Loggers.nio.debug( "Could not unregister the MBean", e );
+		}
+		this.objectName = null;
 	}
 
 	private void shutdownThreadPool() throws InterruptedException
@@ -282,6 +977,7 @@ public class SocketMachine extends Thread
 	public void run()
 	{
 		Loggers.nio.info( "Dispatcher thread priority: {}", getPriority() );
+		long selectEnd = System.nanoTime();
 		try
 		{
 			while( !Thread.interrupted() )
@@ -292,6 +988,11 @@ public class SocketMachine extends Thread
 					// TODO Make sure this is not optimized away
 				}
 
+				// Reset before draining, changes queued after this will wake up the select
+				this.wakeupPending.set( false );
+				applyInterestChanges();
+				applyBackpressure();
+
 //				try
 //				{
 //					Thread.sleep( 100 );
@@ -301,9 +1002,26 @@ public class SocketMachine extends Thread
 //					throw new ThreadInterrupted();
 //				}
 
+				long now = System.currentTimeMillis();
+				long delay = this.timeouts.nextDelay( now, this.throttling ? 10 : 10000 ); // Poll the executor while throttling
+				this.selectUntil = now + delay;
+				if( this.timeouts.hasScheduled() ) // Could have been added before selectUntil was set
+					delay = 0;
+
 				if( Loggers.nio.isTraceEnabled() )
 					Loggers.nio.trace( "Selecting from {} keys", this.selector.keys().size() );
-				int selected = this.selector.select( 10000 );
+				long selectStart = System.nanoTime();
+				this.busyNanos += selectStart - selectEnd;
+				int selected;
+				if( delay == 0 )
+					selected = this.selector.selectNow();
+				else if( this.maxSpinNanos > 0 )
+					selected = spin( delay );
+				else
+					selected = this.selector.select( delay );
+				selectEnd = System.nanoTime();
+				this.loops++;
+				this.selectedKeys += selected;
 				Loggers.nio.trace( "Selected {} keys", selected );
 
 				Set< SelectionKey > keys = this.selector.selectedKeys();
@@ -334,16 +1052,28 @@ public class SocketMachine extends Thread
 								if( channel != null )
 								{
 									channel.configureBlocking( false );
-									key = channel.register( this.selector, 0 );
+									serverSocket.getOptions().apply( channel );
 
-									Socket socket = new Socket( true, this );
+									// Spread the accepted channels over the machines in the group, with SO_REUSEPORT the kernel has done that already
+									Socket socket = new Socket( true, serverSocket.isReusePort() ? this : next() );
+									key = socket.getMachine().register( channel, 0 );
 									socket.setKey( key );
 									key.attach( socket );
+									socket.setAutoBatch( serverSocket.getOptions().isAutoBatch() );
 									serverSocket.addSocket( socket );
-									socket.setReader( serverSocket.getReader() );
-
-									Loggers.nio.trace( "Channel ({}) New channel, Readable", socket.getDebugId() );
-									socket.dataIsReady();
+									if( serverSocket.getHandler() != null )
+									{
+										// The events are handled by the selector thread of the machine that got the socket
+										socket.setHandler( serverSocket.getHandler() );
+										socket.getMachine().listenRead( key );
+										Loggers.nio.trace( "Channel ({}) New channel, event mode", socket.getDebugId() );
+									}
+									else
+									{
+										socket.setReader( serverSocket.getReader() );
+										Loggers.nio.trace( "Channel ({}) New channel, Readable", socket.getDebugId() );
+										socket.dataIsReady();
+									}
 								}
 								else
 									Loggers.nio.trace( "Lost accept" );
@@ -360,10 +1090,7 @@ public class SocketMachine extends Thread
 							if( Loggers.nio.isTraceEnabled() )
 								Loggers.nio.trace( "Channel ({}) Readable", DebugId.getId( channel ) );
 
-							synchronized( key )
-							{
-								key.interestOps( key.interestOps() ^ SelectionKey.OP_READ );
-							}
+							key.interestOps( key.interestOps() & ~SelectionKey.OP_READ );
 
 							Socket socket = (Socket)key.attachment();
 							socket.dataIsReady();
@@ -375,10 +1102,7 @@ public class SocketMachine extends Thread
 							if( Loggers.nio.isTraceEnabled() )
 								Loggers.nio.trace( "Channel ({}) Writable", DebugId.getId( channel ) );
 
-							synchronized( key )
-							{
-								key.interestOps( key.interestOps() ^ SelectionKey.OP_WRITE );
-							}
+							key.interestOps( key.interestOps() & ~SelectionKey.OP_WRITE );
 
 							Socket socket = (Socket)key.attachment();
 							socket.writeIsReady();
@@ -390,7 +1114,7 @@ public class SocketMachine extends Thread
 							if( Loggers.nio.isTraceEnabled() )
 								Loggers.nio.trace( "Channel ({}) Connectable", DebugId.getId( channel ) );
 
-							Assert.fail( "Shouldn't come here" );
+							finishConnect( key, (Socket)key.attachment() );
 						}
 					}
 					catch( CancelledKeyException e )
@@ -405,58 +1129,32 @@ public class SocketMachine extends Thread
 
 				keys.clear();
 
-				long now = System.currentTimeMillis();
+				now = System.currentTimeMillis();
 
 				if( Loggers.nio.isDebugEnabled() )
 					if( now >= this.nextLogging )
 					{
-						Loggers.nio.debug( "Active count/keys: {}/{}", this.executor.getActiveCount(), this.selector.keys().size() );
+						if( this.executor instanceof ThreadPoolExecutor )
+							Loggers.nio.debug( "Active count/keys: {}/{}", ( (ThreadPoolExecutor)this.executor ).getActiveCount(), this.selector.keys().size() );
+						else
+							Loggers.nio.debug( "Keys: {}", this.selector.keys().size() );
 						this.nextLogging = now + 1000;
 					}
 
-				if( now >= this.nextTimeout )
+				this.timeouts.expire( now, this.expired );
+				if( !this.expired.isEmpty() )
 				{
-					this.nextTimeout = now + 10000;
-
-					Loggers.nio.trace( "Processing timeouts" );
-
-					List<Timeout> timedouts = new ArrayList<Timeout>();
-					synchronized( this.timeouts )
-					{
-						for( Iterator<Timeout> i = this.timeouts.values().iterator(); i.hasNext(); )
+					Loggers.nio.trace( "Processing {} timeouts", this.expired.size() );
+					for( Timeout timeout : this.expired )
+						try
 						{
-							Timeout timeout = i.next();
-							if( timeout.getWhen() <= now )
-							{
-								timedouts.add( timeout );
-								i.remove();
-							}
+							timeout.fire();
 						}
-					}
-
-					for( Timeout timeout : timedouts )
-						timeout.getListener().timeout( timeout.getHandler() );
-
-					for( ClientSocket socket : this.clientSockets )
-						socket.timeout();
-
-//					// TODO This should not be needed
-//					Set<SelectionKey> keys2 = this.selector.keys();
-//					Set<SelectableChannel> test = new HashSet<SelectableChannel>();
-//					synchronized( keys2 ) // TODO Also synchronize on the selector?
-//					{
-//						for( SelectionKey key : keys2 )
-//						{
-//							test.add( key.channel() );
-//							if( key.channel() instanceof SocketChannel )
-//								Assert.isTrue( ( (SocketChannel)key.channel() ).isConnected() );
-//							if( !key.isValid() )
-//								if( key.attachment() instanceof SocketChannelHandler )
-//									( (SocketChannelHandler)key.attachment() ).lost();
-//						}
-//
-//						Assert.isTrue( test.size() == keys2.size() );
-//					}
+						catch( Exception e )
+						{
+							Loggers.nio.debug( "Unhandled exception in timeout", e );
+						}
+					this.expired.clear();
 				}
 			}
 		}
@@ -466,6 +1164,7 @@ public class SocketMachine extends Thread
 		}
 		finally
 		{
+			unregisterMBean();
 			if( this.executor.isTerminated() )
 				Loggers.nio.info( "Dispatcher ended" );
 			else
@@ -483,4 +1182,185 @@ public class SocketMachine extends Thread
 			}
 		}
 	}
+
+	// Reads the counters of the machine, each attribute is read when it is asked for
+	static private class LiveMetrics implements SocketMachineMXBean
+	{
+		private SocketMachine machine;
+
+		LiveMetrics( SocketMachine machine )
+		{
+			this.machine = machine;
+		}
+
+		public long getLoops()
+		{
+			return this.machine.loops;
+		}
+
+		public long getSelectedKeys()
+		{
+			return this.machine.selectedKeys;
+		}
+
+		public long getWakeups()
+		{
+			return this.machine.wakeups.get();
+		}
+
+		public long getBusyTime()
+		{
+			return this.machine.busyNanos / 1000000;
+		}
+
+		public int getExecutorActive()
+		{
+			ExecutorService executor = this.machine.executor;
+			return executor instanceof ThreadPoolExecutor ? ( (ThreadPoolExecutor)executor ).getActiveCount() : -1;
+		}
+
+		public int getExecutorQueued()
+		{
+			ExecutorService executor = this.machine.executor;
+			return executor instanceof ThreadPoolExecutor ? ( (ThreadPoolExecutor)executor ).getQueue().size() : -1;
+		}
+
+		public int getExecutorLargest()
+		{
+			ExecutorService executor = this.machine.executor;
+			return executor instanceof ThreadPoolExecutor ? ( (ThreadPoolExecutor)executor ).getLargestPoolSize() : -1;
+		}
+
+		public int getListeningSockets()
+		{
+			synchronized( this.machine.serverKeys )
+			{
+				return this.machine.serverKeys.size();
+			}
+		}
+
+		public int getServerSockets()
+		{
+			return (int)( this.machine.serverOpened.get() - this.machine.serverClosed.get() );
+		}
+
+		public int getClientSockets()
+		{
+			return (int)( this.machine.clientOpened.get() - this.machine.clientClosed.get() );
+		}
+
+		public int getTimeoutsScheduled()
+		{
+			return this.machine.timeouts.getCounts()[ 0 ];
+		}
+
+		public int getTimeoutsCancelled()
+		{
+			return this.machine.timeouts.getCounts()[ 1 ];
+		}
+
+		public int getTimeoutsFired()
+		{
+			return this.machine.timeouts.getCounts()[ 2 ];
+		}
+
+		public long getBytesRead()
+		{
+			return this.machine.bytesRead.get();
+		}
+
+		public long getBytesWritten()
+		{
+			return this.machine.bytesWritten.get();
+		}
+
+		public long getBuffersLeased()
+		{
+			return this.machine.bufferPool.getCounts()[ 0 ];
+		}
+
+		public long getBuffersPooled()
+		{
+			return this.machine.bufferPool.getCounts()[ 1 ];
+		}
+
+		public long getBufferMemory()
+		{
+			return this.machine.bufferPool.getCounts()[ 2 ];
+		}
+
+		public String getBufferSizing()
+		{
+			return this.machine.bufferSizing.toString();
+		}
+
+		public long getReadBuffers()
+		{
+			return this.machine.readBuffers.get();
+		}
+
+		public long getReadBufferSize()
+		{
+			long buffers = this.machine.readBuffers.get();
+			return buffers > 0 ? this.machine.readBufferBytes.get() / buffers : 0;
+		}
+
+		public long getWriteBuffers()
+		{
+			return this.machine.writeBuffers.get();
+		}
+
+		public long getWriteBufferSize()
+		{
+			long buffers = this.machine.writeBuffers.get();
+			return buffers > 0 ? this.machine.writeBufferBytes.get() / buffers : 0;
+		}
+
+		public long getBuffersGrown()
+		{
+			return this.machine.buffersGrown.get();
+		}
+
+		public long getBuffersShrunk()
+		{
+			return this.machine.buffersShrunk.get();
+		}
+
+		public double getKeysPerLoop()
+		{
+			long loops = this.machine.loops;
+			return loops > 0 ? (double)this.machine.selectedKeys / loops : 0;
+		}
+	}
+
+	static private class InterestChange
+	{
+		SelectionKey key;
+		int ops;
+		boolean idle;
+
+		InterestChange( SelectionKey key, int ops, boolean idle )
+		{
+			this.key = key;
+			this.ops = ops;
+			this.idle = idle;
+		}
+	}
+
+	static private class ConnectTimeout extends Timeout
+	{
+		private Socket socket;
+
+		ConnectTimeout( Socket socket, long when )
+		{
+			super( when );
+			this.socket = socket;
+		}
+
+		@Override
+		protected void fire()
+		{
+			this.socket.getMachine().abortConnect( this.socket, new ConnectException( "Connect timed out" ) );
+		}
+	}
 }
@@ -0,0 +1,167 @@
+package solidstack.nio;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * A group of {@link SocketMachine}s, each with its own selector thread, that share one thread pool. New channels are
+ * spread round robin over the machines, so that the select loop is not limited to a single core.
+ *
+ * @author Ren M. de Bloois
+ */
+public class SocketMachineGroup
+{
+	private SocketMachine[] machines;
+	private AtomicInteger next = new AtomicInteger();
+	private ExecutorService executor;
+
+	public SocketMachineGroup()
+	{
+		this( Runtime.getRuntime().availableProcessors() );
+	}
+
+	public SocketMachineGroup( int size )
+	{
+		this( size, Executors.newCachedThreadPool() );
+	}
+
+	/**
+	 * @param size The number of machines.
+	 * @param executor The executor that runs the socket tasks of all the machines, see {@link SocketMachine#newVirtualThreadExecutor()}.
+	 */
+	public SocketMachineGroup( int size, ExecutorService executor )
+	{
+		if( size < 1 )
+			throw new IllegalArgumentException( "size must be at least 1" );
+
+		this.executor = executor;
+		this.machines = new SocketMachine[ size ];
+		for( int i = 0; i < size; i++ )
+			this.machines[ i ] = new SocketMachine( this, this.executor );
+	}
+
+	public int size()
+	{
+		return this.machines.length;
+	}
+
+	public SocketMachine getMachine( int index )
+	{
+		return this.machines[ index ];
+	}
+
+	/**
+	 * @return The machine that should get the next new channel.
+	 */
+	public SocketMachine next()
+	{
+		if( this.machines.length == 1 )
+			return this.machines[ 0 ];
+		int i = this.next.getAndIncrement() & Integer.MAX_VALUE;
+		return this.machines[ i % this.machines.length ];
+	}
+
+	public void execute( Runnable command )
+	{
+		this.machines[ 0 ].execute( command );
+	}
+
+	public ServerSocket listen( InetSocketAddress address ) throws IOException
+	{
+		return next().listen( address );
+	}
+
+	public ServerSocket listen( InetSocketAddress address, int backlog ) throws IOException
+	{
+		return next().listen( address, backlog );
+	}
+
+	/**
+	 * Listens with a channel for each machine, all bound to the same port with SO_REUSEPORT. The kernel spreads the new
+	 * connections over the channels, so that each machine accepts its own connections. Needs Java 9 or higher and an
+	 * operating system that supports SO_REUSEPORT, like Linux.
+	 *
+	 * @param address The address to bind to, the port can not be 0.
+	 * @param backlog The backlog of each channel.
+	 * @return The server socket.
+	 * @throws IOException When binding fails.
+	 * @throws UnsupportedOperationException When SO_REUSEPORT is not supported.
+	 */
+	public ServerSocket listenReusePort( InetSocketAddress address, int backlog ) throws IOException
+	{
+		if( address.getPort() == 0 )
+			throw new IllegalArgumentException( "port can not be 0" );
+
+		ServerSocket socket = new ServerSocket( true );
+		boolean bound = false;
+		try
+		{
+			for( SocketMachine machine : this.machines )
+				machine.listen( socket, address, backlog, true );
+			bound = true;
+		}
+		finally
+		{
+			if( !bound )
+				socket.close(); // Releases the port of the channels that were bound before the failure
+		}
+		Loggers.nio.trace( "Channel ({}) New, {} acceptors" , socket.getDebugId(), this.machines.length );
+		return socket;
+	}
+
+	public ClientSocket createClientSocket( String hostname, int port )
+	{
+		return next().createClientSocket( hostname, port );
+	}
+
+	public Socket connect( String hostname, int port ) throws ConnectException
+	{
+		return next().connect( hostname, port );
+	}
+
+	/**
+	 * Sets the bounds of the buffer sizes of the socket streams of each machine, see
+	 * {@link SocketMachine#setBufferSizing(BufferSizing)}.
+	 */
+	public void setBufferSizing( BufferSizing bufferSizing )
+	{
+		for( SocketMachine machine : this.machines )
+			machine.setBufferSizing( bufferSizing );
+	}
+
+	/**
+	 * Registers an MBean for each machine, see {@link SocketMachine#registerMBean()}.
+	 */
+	public void registerMBeans()
+	{
+		for( SocketMachine machine : this.machines )
+			machine.registerMBean();
+	}
+
+	public void start()
+	{
+		for( SocketMachine machine : this.machines )
+			machine.start();
+	}
+
+	/**
+	 * Starts all machines but the first, which is run in the current thread.
+	 */
+	public void run()
+	{
+		for( int i = 1; i < this.machines.length; i++ )
+			this.machines[ i ].start();
+		this.machines[ 0 ].run();
+	}
+
+	public void shutdown()
+	{
+		for( SocketMachine machine : this.machines )
+			machine.shutdown();
+	}
+}
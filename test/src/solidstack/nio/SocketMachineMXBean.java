@@ -0,0 +1,37 @@
+package solidstack.nio;
+
+
+/**
+ * JMX view on the metrics of a {@link SocketMachine}, see {@link SocketMachine#registerMBean()}.
+ *
+ * @author Ren M. de Bloois
+ */
+public interface SocketMachineMXBean
+{
+	long getLoops();
+	long getSelectedKeys();
+	long getWakeups();
+	long getBusyTime();
+	int getExecutorActive();
+	int getExecutorQueued();
+	int getExecutorLargest();
+	int getListeningSockets();
+	int getServerSockets();
+	int getClientSockets();
+	int getTimeoutsScheduled();
+	int getTimeoutsCancelled();
+	int getTimeoutsFired();
+	long getBytesRead();
+	long getBytesWritten();
+	long getBuffersLeased();
+	long getBuffersPooled();
+	long getBufferMemory();
+	String getBufferSizing();
+	long getReadBuffers();
+	long getReadBufferSize();
+	long getWriteBuffers();
+	long getWriteBufferSize();
+	long getBuffersGrown();
+	long getBuffersShrunk();
+	double getKeysPerLoop();
+}
@@ -0,0 +1,258 @@
+package solidstack.nio;
+
+
+/**
+ * Snapshot of the metrics of a {@link SocketMachine}. The counters count from the start of the machine.
+ *
+ * @author Ren M. de Bloois
+ */
+public class SocketMachineMetrics implements SocketMachineMXBean
+{
+	long loops;
+	long selectedKeys;
+	long wakeups;
+	long busyTime;
+	int executorActive;
+	int executorQueued;
+	int executorLargest;
+	int listeningSockets;
+	int serverSockets;
+	int clientSockets;
+	int timeoutsScheduled;
+	int timeoutsCancelled;
+	int timeoutsFired;
+	long bytesRead;
+	long bytesWritten;
+	long buffersLeased;
+	long buffersPooled;
+	long bufferMemory;
+	String bufferSizing;
+	long readBuffers;
+	long readBufferBytes;
+	long writeBuffers;
+	long writeBufferBytes;
+	long buffersGrown;
+	long buffersShrunk;
+
+	/**
+	 * @return The number of iterations of the select loop.
+	 */
+	public long getLoops()
+	{
+		return this.loops;
+	}
+
+	/**
+	 * @return The number of keys selected, summed over all iterations.
+	 */
+	public long getSelectedKeys()
+	{
+		return this.selectedKeys;
+	}
+
+	/**
+	 * @return The number of times the selector was woken up by another thread.
+	 */
+	public long getWakeups()
+	{
+		return this.wakeups;
+	}
+
+	/**
+	 * @return The number of milliseconds the selector thread spent outside of select().
+	 */
+	public long getBusyTime()
+	{
+		return this.busyTime;
+	}
+
+	/**
+	 * @return The number of threads that are actively running tasks, -1 if the executor does not tell.
+	 */
+	public int getExecutorActive()
+	{
+		return this.executorActive;
+	}
+
+	/**
+	 * @return The number of tasks waiting for a thread, -1 if the executor does not tell.
+	 */
+	public int getExecutorQueued()
+	{
+		return this.executorQueued;
+	}
+
+	/**
+	 * @return The largest number of threads that have been in the pool, -1 if the executor does not tell.
+	 */
+	public int getExecutorLargest()
+	{
+		return this.executorLargest;
+	}
+
+	/**
+	 * @return The number of sockets listening for connections.
+	 */
+	public int getListeningSockets()
+	{
+		return this.listeningSockets;
+	}
+
+	/**
+	 * @return The number of open accepted sockets.
+	 */
+	public int getServerSockets()
+	{
+		return this.serverSockets;
+	}
+
+	/**
+	 * @return The number of open client sockets.
+	 */
+	public int getClientSockets()
+	{
+		return this.clientSockets;
+	}
+
+	/**
+	 * @return The number of timeouts scheduled.
+	 */
+	public int getTimeoutsScheduled()
+	{
+		return this.timeoutsScheduled;
+	}
+
+	/**
+	 * @return The number of timeouts cancelled.
+	 */
+	public int getTimeoutsCancelled()
+	{
+		return this.timeoutsCancelled;
+	}
+
+	/**
+	 * @return The number of timeouts fired.
+	 */
+	public int getTimeoutsFired()
+	{
+		return this.timeoutsFired;
+	}
+
+	/**
+	 * @return The number of bytes read from the sockets.
+	 */
+	public long getBytesRead()
+	{
+		return this.bytesRead;
+	}
+
+	/**
+	 * @return The number of bytes written to the sockets.
+	 */
+	public long getBytesWritten()
+	{
+		return this.bytesWritten;
+	}
+
+	/**
+	 * @return The number of buffers leased from the buffer pool, which can be shared with other machines.
+	 */
+	public long getBuffersLeased()
+	{
+		return this.buffersLeased;
+	}
+
+	/**
+	 * @return The number of free buffers in the buffer pool.
+	 */
+	public long getBuffersPooled()
+	{
+		return this.buffersPooled;
+	}
+
+	/**
+	 * @return The number of bytes of native memory allocated by the buffer pool.
+	 */
+	public long getBufferMemory()
+	{
+		return this.bufferMemory;
+	}
+
+	/**
+	 * @return The bounds of the buffer sizes of the socket streams, see {@link BufferSizing}.
+	 */
+	public String getBufferSizing()
+	{
+		return this.bufferSizing;
+	}
+
+	/**
+	 * @return The number of buffers held by socket input streams.
+	 */
+	public long getReadBuffers()
+	{
+		return this.readBuffers;
+	}
+
+	/**
+	 * @return The average size of the buffers held by socket input streams.
+	 */
+	public long getReadBufferSize()
+	{
+		return this.readBuffers > 0 ? this.readBufferBytes / this.readBuffers : 0;
+	}
+
+	/**
+	 * @return The number of buffers held by socket output streams.
+	 */
+	public long getWriteBuffers()
+	{
+		return this.writeBuffers;
+	}
+
+	/**
+	 * @return The average size of the buffers held by socket output streams.
+	 */
+	public long getWriteBufferSize()
+	{
+		return this.writeBuffers > 0 ? this.writeBufferBytes / this.writeBuffers : 0;
+	}
+
+	/**
+	 * @return The number of times a socket stream has grown its buffer size.
+	 */
+	public long getBuffersGrown()
+	{
+		return this.buffersGrown;
+	}
+
+	/**
+	 * @return The number of times a socket stream has shrunk its buffer size.
+	 */
+	public long getBuffersShrunk()
+	{
+		return this.buffersShrunk;
+	}
+
+	/**
+	 * @return The average number of keys selected per iteration of the select loop.
+	 */
+	public double getKeysPerLoop()
+	{
+		return this.loops > 0 ? (double)this.selectedKeys / this.loops : 0;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "loops=" + this.loops + ", keys/loop=" + getKeysPerLoop() + ", wakeups=" + this.wakeups + ", busy=" + this.busyTime + "ms"
+				+ ", executor active/queued/largest=" + this.executorActive + "/" + this.executorQueued + "/" + this.executorLargest
+				+ ", sockets listening/server/client=" + this.listeningSockets + "/" + this.serverSockets + "/" + this.clientSockets
+				+ ", timeouts scheduled/cancelled/fired=" + this.timeoutsScheduled + "/" + this.timeoutsCancelled + "/" + this.timeoutsFired
+				+ ", bytes read/written=" + this.bytesRead + "/" + this.bytesWritten
+				+ ", buffers leased/pooled=" + this.buffersLeased + "/" + this.buffersPooled + ", buffer memory=" + this.bufferMemory
+				+ ", buffer sizing=" + this.bufferSizing
+				+ ", read buffers/size=" + this.readBuffers + "/" + getReadBufferSize() + ", write buffers/size=" + this.writeBuffers + "/" + getWriteBufferSize()
+				+ ", buffers grown/shrunk=" + this.buffersGrown + "/" + this.buffersShrunk;
+	}
+}
@@ -0,0 +1,106 @@
+package solidstack.nio;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+
+
+/**
+ * Options for the sockets of a {@link ServerSocket} or a {@link ClientSocket}. Options that are not set keep the
+ * default of the operating system. Changes apply to the sockets that are created after the change.
+ *
+ * @author Ren M. de Bloois
+ */
+public class SocketOptions
+{
+	private Boolean tcpNoDelay;
+	private Boolean keepAlive;
+	private int sendBufferSize;
+	private int receiveBufferSize;
+	private boolean autoBatch;
+
+	/**
+	 * @param tcpNoDelay True to disable Nagle's algorithm, so that small segments are sent right away.
+	 */
+	public void setTcpNoDelay( boolean tcpNoDelay )
+	{
+		this.tcpNoDelay = tcpNoDelay;
+	}
+
+	public Boolean getTcpNoDelay()
+	{
+		return this.tcpNoDelay;
+	}
+
+	public void setKeepAlive( boolean keepAlive )
+	{
+		this.keepAlive = keepAlive;
+	}
+
+	public Boolean getKeepAlive()
+	{
+		return this.keepAlive;
+	}
+
+	/**
+	 * @param sendBufferSize The size of the send buffer of the operating system, 0 for the default.
+	 */
+	public void setSendBufferSize( int sendBufferSize )
+	{
+		this.sendBufferSize = sendBufferSize;
+	}
+
+	public int getSendBufferSize()
+	{
+		return this.sendBufferSize;
+	}
+
+	/**
+	 * @param receiveBufferSize The size of the receive buffer of the operating system, 0 for the default.
+	 */
+	public void setReceiveBufferSize( int receiveBufferSize )
+	{
+		this.receiveBufferSize = receiveBufferSize;
+	}
+
+	public int getReceiveBufferSize()
+	{
+		return this.receiveBufferSize;
+	}
+
+	/**
+	 * Batches the flushes. The output stream is corked while the task of the socket runs, and while a request is being
+	 * written to a client socket. What is flushed in the meantime goes out together, when the task or the request writer
+	 * is done or when the task has to wait for input. See {@link SocketOutputStream#cork()}.
+	 *
+	 * @param autoBatch True to batch the flushes.
+	 */
+	public void setAutoBatch( boolean autoBatch )
+	{
+		this.autoBatch = autoBatch;
+	}
+
+	public boolean isAutoBatch()
+	{
+		return this.autoBatch;
+	}
+
+	void apply( SocketChannel channel ) throws IOException
+	{
+		java.net.Socket socket = channel.socket();
+		if( this.tcpNoDelay != null )
+			socket.setTcpNoDelay( this.tcpNoDelay );
+		if( this.keepAlive != null )
+			socket.setKeepAlive( this.keepAlive );
+		if( this.sendBufferSize > 0 )
+			socket.setSendBufferSize( this.sendBufferSize );
+		if( this.receiveBufferSize > 0 )
+			socket.setReceiveBufferSize( this.receiveBufferSize );
+	}
+
+	@Override
+	public String toString()
+	{
+		return "tcpNoDelay=" + this.tcpNoDelay + ", keepAlive=" + this.keepAlive + ", sendBufferSize=" + this.sendBufferSize
+				+ ", receiveBufferSize=" + this.receiveBufferSize + ", autoBatch=" + this.autoBatch;
+	}
+}
@@ -3,7 +3,11 @@ package solidstack.nio;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicReference;
 
 import solidstack.httpserver.FatalSocketException;
@@ -11,81 +15,377 @@ import solidstack.lang.Assert;
 
 
 // TODO Improve performance?
+// There is no lock, only one thread at a time may write, see enter(). The writer waits for the selector thread with the
+// Waiter. When the socket is closed while a thread is writing, that thread releases the buffer when it is done.
 public class SocketOutputStream extends OutputStream
 {
+	static private final int MAX_QUEUED = 64; // Buffers in one gathering write
+
 	private Socket handler;
-	private ByteBuffer buffer;
+	private SocketMachine machine;
+	private BufferPool pool;
+	private ByteBuffer buffer; // Leased when needed, null when the socket is idle
+	private AdaptiveBufferSize size;
+	private volatile boolean released; // Released for good, the socket is closed
+	private List<ByteBuffer> queued = new ArrayList<ByteBuffer>(); // Written after the buffer
 //	private AtomicBoolean block = new AtomicBoolean();
-	private AtomicReference<Thread> block = new AtomicReference<Thread>();
+	private AtomicReference<Thread> block = new AtomicReference<Thread>(); // The thread that is writing
+	private Waiter writable = new Waiter();
+	private volatile boolean corked;
+	private volatile boolean flushPending; // A flush that was held back by the cork
+	private Waiter unblocked = new Waiter(); // For the thread that waits in enter()
+	private AtomicReference<Thread> waiting = new AtomicReference<Thread>();
 
 	public SocketOutputStream( Socket handler )
 	{
 		this.handler = handler;
-		this.buffer = ByteBuffer.allocate( 8192 );
+		this.machine = handler.getMachine();
+		this.pool = this.machine.getBufferPool();
+		this.size = new AdaptiveBufferSize( this.machine.getBufferSizing() );
 	}
 
 	@Override
-	synchronized public void write( int b )
+	public void write( int b )
 	{
-		if( !this.block.compareAndSet( null, Thread.currentThread() ) )
-			Assert.fail( "Channel (" + this.handler.getDebugId() + ") " + this.block.get().getName() );
-
-		Assert.isTrue( this.buffer.hasRemaining() );
-		this.buffer.put( (byte)b );
-		if( !this.buffer.hasRemaining() )
-			writeChannel();
-
-		this.block.set( null );
+		enter();
+		try
+		{
+			if( !this.queued.isEmpty() )
+				writeChannel(); // Keep the order
+			checkBuffer();
+			Assert.isTrue( this.buffer.hasRemaining() );
+			this.buffer.put( (byte)b );
+			if( !this.buffer.hasRemaining() )
+				writeChannel();
+		}
+		finally
+		{
+			exit();
+		}
 	}
 
 	@Override
-	// TODO Can we do this synchronized differently?
-	synchronized public void write( byte[] b, int off, int len )
+	public void write( byte[] b, int off, int len )
 	{
 		if( len == 0 )
 			return;
 
-		if( !this.block.compareAndSet( null, Thread.currentThread() ) )
-			Assert.fail( "Channel (" + this.handler.getDebugId() + ") " + this.block.get().getName() );
+		enter();
+		try
+		{
+			// Large writes are not copied, they are written together with the buffer
+			if( len >= this.size.get() )
+			{
+				checkOpen();
+				this.queued.add( ByteBuffer.wrap( b, off, len ) );
+				writeChannel(); // The caller owns the array, so it must be written before returning
+				return;
+			}
 
-		while( len > 0 )
+			if( !this.queued.isEmpty() )
+				writeChannel(); // Keep the order
+			while( len > 0 )
+			{
+				checkBuffer(); // Released by writeChannel() when resized
+				int l = len;
+				if( l > this.buffer.remaining() )
+					l = this.buffer.remaining();
+				this.buffer.put( b, off, l );
+				off += l;
+				len -= l;
+				if( !this.buffer.hasRemaining() )
+					writeChannel();
+			}
+		}
+		finally
 		{
-			int l = len;
-			if( l > this.buffer.remaining() )
-				l = this.buffer.remaining();
-			this.buffer.put( b, off, l );
-			off += l;
-			len -= l;
-			if( !this.buffer.hasRemaining() )
+			exit();
+		}
+	}
+
+	@Override
+	public void flush() throws IOException
+	{
+		enter();
+		try
+		{
+			checkOpen();
+			if( this.corked && this.queued.isEmpty() )
+				this.flushPending = true; // Queued buffers are written anyway, their owners need them back
+			else if( this.buffer != null && this.buffer.position() > 0 || !this.queued.isEmpty() )
 				writeChannel();
 		}
+		finally
+		{
+			exit();
+		}
+	}
 
-		this.block.set( null );
+	/**
+	 * Holds back the flushes till {@link #uncork()}, so that what is written with several flushes goes out with one
+	 * write to the channel. A buffer that is full is still written, and so is a held back flush when the task of the
+	 * socket has to wait for input.
+	 */
+	public void cork()
+	{
+		this.corked = true;
 	}
 
-	@Override
-	synchronized public void flush() throws IOException
+	/**
+	 * Stops holding back the flushes, and does the flush that was held back.
+	 */
+	public void uncork()
 	{
-		if( !this.block.compareAndSet( null, Thread.currentThread() ) )
-			Assert.fail( "Channel (" + this.handler.getDebugId() + ") " + this.block.get().getName() );
+		this.corked = false;
+		flushHeld();
+	}
 
-		if( this.buffer.position() > 0 )
-			writeChannel();
+	public boolean isCorked()
+	{
+		return this.corked;
+	}
 
-		this.block.set( null );
+	// Does the flush that was held back, also when corked. When another thread is writing, that thread does it when it
+	// is done and the stream is not corked anymore.
+	void flushHeld()
+	{
+		if( !this.flushPending )
+			return;
+		if( !this.block.compareAndSet( null, Thread.currentThread() ) )
+			return;
+		try
+		{
+			if( this.flushPending && !this.released && ( this.buffer != null && this.buffer.position() > 0 || !this.queued.isEmpty() ) )
+				writeChannel();
+			this.flushPending = false;
+		}
+		finally
+		{
+			exit();
+		}
+	}
+
+	/**
+	 * Queues a buffer to be written after what has been written to the stream so far, without copying it. The queued
+	 * buffers are written with one gathering write when the stream is flushed or when more bytes are written to it.
+	 * The buffer must not be changed until then.
+	 *
+	 * @param buffer The buffer to write, ready to get.
+	 */
+	public void queue( ByteBuffer buffer )
+	{
+		enter();
+		try
+		{
+			checkOpen();
+			if( buffer.hasRemaining() )
+			{
+				this.queued.add( buffer );
+				if( this.queued.size() >= MAX_QUEUED )
+					writeChannel();
+			}
+		}
+		finally
+		{
+			exit();
+		}
 	}
 
 	@Override
-	synchronized public void close() throws IOException
+	public void close() throws IOException
 	{
+		this.corked = false;
 		flush();
 		this.handler.close();
 	}
 
+	/**
+	 * Writes a region of a file with {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)},
+	 * after what has been written to the stream so far. The operating system can send the file without copying it
+	 * through the JVM.
+	 *
+	 * @param file The file.
+	 * @param position The position in the file.
+	 * @param count The number of bytes to write.
+	 * @throws IOException When the file can not be read.
+	 */
+	public void transferFrom( FileChannel file, long position, long count ) throws IOException
+	{
+		if( position + count > file.size() )
+			throw new IllegalArgumentException( "Region exceeds the size of the file" );
+
+		enter();
+		try
+		{
+			checkOpen();
+			if( this.buffer != null && this.buffer.position() > 0 || !this.queued.isEmpty() )
+				writeChannel();
+
+			SocketChannel channel = this.handler.getChannel();
+			int id = DebugId.getId( channel );
+			long remaining = count;
+			while( remaining > 0 )
+			{
+				long written = file.transferTo( position, remaining, channel ); // 0 when the socket buffer is full
+				if( Loggers.nio.isTraceEnabled() )
+					Loggers.nio.trace( "Channel ({}) transferred #{} bytes to channel", id, written );
+				position += written;
+				remaining -= written;
+				if( written == 0 )
+				{
+					awaitWritable();
+					checkOpen();
+				}
+			}
+			this.handler.getMachine().countWritten( count );
+		}
+		finally
+		{
+			exit();
+		}
+	}
+
+	// Returns the buffer to the pool for good, can be called more than once
+	void releaseBuffer()
+	{
+		this.released = true;
+		if( !this.block.compareAndSet( null, Thread.currentThread() ) )
+			return; // The thread that is writing releases the buffer, see exit()
+		try
+		{
+			this.queued.clear();
+			if( this.buffer != null )
+				release();
+		}
+		finally
+		{
+			unblock();
+		}
+	}
+
+	// Returns the buffer to the pool when everything has been written, the next write leases a new one
+	void releaseIdleBuffer()
+	{
+		if( !this.block.compareAndSet( null, Thread.currentThread() ) )
+			return; // Not idle
+		try
+		{
+			if( this.buffer != null && this.buffer.position() == 0 && this.queued.isEmpty() )
+				release();
+		}
+		finally
+		{
+			unblock();
+		}
+		if( this.released )
+			releaseBuffer(); // Closed while releasing
+	}
+
+	// Makes the current thread the writer, only one thread at a time may write. Another thread may hold the stream for a
+	// while: the task of the socket doing a held back flush while the response of an asynchronous request is written,
+	// or the release of the idle buffer. That is waited for, by one thread at most.
+	private void enter()
+	{
+		Thread current = Thread.currentThread();
+		if( this.block.compareAndSet( null, current ) )
+			return;
+
+		if( !this.waiting.compareAndSet( null, current ) )
+			throw new FatalSocketException( new IllegalStateException( "Channel (" + this.handler.getDebugId() + ") More than 2 threads are writing" ) );
+		try
+		{
+			while( true )
+			{
+				checkOpen(); // The buffer is being released
+				this.unblocked.prepare();
+				if( this.block.compareAndSet( null, current ) ) // Unblocked before the prepare
+				{
+					this.unblocked.cancel();
+					return;
+				}
+				this.unblocked.await();
+			}
+		}
+		catch( InterruptedException e )
+		{
+			throw new FatalSocketException( e );
+		}
+		finally
+		{
+			this.waiting.set( null );
+		}
+	}
+
+	private void unblock()
+	{
+		this.block.set( null );
+		this.unblocked.signal();
+	}
+
+	private void exit()
+	{
+		unblock();
+		if( this.released )
+			releaseBuffer(); // Closed while writing
+		else if( this.flushPending && !this.corked )
+			flushHeld(); // Uncorked while writing
+	}
+
+	private void checkOpen()
+	{
+		if( this.released )
+			throw new FatalSocketException( new ClosedChannelException() );
+	}
+
+	private void checkBuffer()
+	{
+		checkOpen();
+		if( this.buffer == null )
+		{
+			this.buffer = this.pool.lease( this.size.get() );
+			this.machine.countBuffer( false, this.buffer.capacity() );
+		}
+	}
+
+	private void release()
+	{
+		this.machine.countBuffer( false, -this.buffer.capacity() );
+		this.pool.release( this.buffer );
+		this.buffer = null;
+	}
+
+	private void awaitWritable()
+	{
+		try
+		{
+			// Prevent losing a signal: prepare() must be called before listenWrite()
+			this.writable.prepare();
+			this.handler.getMachine().listenWrite( this.handler.getKey() );
+			// Closed before the prepare, the signal is lost and a cancelled key is never selected
+			if( this.released || !this.handler.isOpen() )
+				this.writable.cancel();
+			else
+				this.writable.await();
+		}
+		catch( InterruptedException e )
+		{
+			throw new FatalSocketException( e );
+		}
+	}
+
+	// Called by the selector thread when the channel has become writable, and when the socket is closed
+	void signalWritable()
+	{
+		this.writable.signal();
+	}
+
 	static private void logBuffer( int id, ByteBuffer buffer )
 	{
 //		StringBuilder log = new StringBuilder();
-		byte[] bytes = buffer.array();
+		byte[] bytes = new byte[ buffer.limit() ];
+		ByteBuffer b = buffer.duplicate();
+		b.position( 0 );
+		b.get( bytes );
 //		int end = buffer.limit();
 //		for( int i = 0; i < end; i++ )
 //		{
@@ -97,6 +397,7 @@ public class SocketOutputStream extends OutputStream
 		Loggers.nio.trace( "Channel (" + id + ") " + new String( bytes, 0, buffer.limit() ) );
 	}
 
+	// Writes the buffer followed by the queued buffers
 	private void writeChannel()
 	{
 		SocketChannel channel = this.handler.getChannel();
@@ -104,42 +405,65 @@ public class SocketOutputStream extends OutputStream
 
 		Assert.isTrue( channel.isOpen(), "Channel is closed" );
 		Assert.isTrue( channel.isConnected() );
-		this.buffer.flip();
-		Assert.isTrue( this.buffer.hasRemaining() );
+
+		int used = this.buffer != null ? this.buffer.position() : 0;
+		boolean buffered = used > 0;
+		ByteBuffer[] buffers = new ByteBuffer[ buffered ? this.queued.size() + 1 : this.queued.size() ];
+		int i = 0;
+		if( buffered )
+		{
+			this.buffer.flip();
+			buffers[ i++ ] = this.buffer;
+		}
+		for( ByteBuffer buffer : this.queued )
+			buffers[ i++ ] = buffer;
+
+		long length = 0;
+		for( ByteBuffer buffer : buffers )
+			length += buffer.remaining();
+		Assert.isTrue( length > 0 );
 
 		try
 		{
 //			logBuffer( id, this.buffer );
-			int written = channel.write( this.buffer );
+			long written = channel.write( buffers );
 			if( Loggers.nio.isTraceEnabled() )
 				Loggers.nio.trace( "Channel ({}) written #{} bytes to channel (1)", id, written );
-			while( this.buffer.hasRemaining() )
+			int offset = skipWritten( buffers, 0 );
+			while( offset < buffers.length )
 			{
-				try
-				{
-					synchronized( this )
-					{
-						// Prevent losing a notify: listenWriter() must be called within the synchronized block
-						this.handler.getMachine().listenWrite( this.handler.getKey() );
-						wait();
-					}
-				}
-				catch( InterruptedException e )
-				{
-					throw new FatalSocketException( e );
-				}
+				awaitWritable();
+				if( this.released || !channel.isOpen() )
+					throw new FatalSocketException( new ClosedChannelException() );
 
 //				logBuffer( id, this.buffer );
-				written = channel.write( this.buffer );
+				written = channel.write( buffers, offset, buffers.length - offset );
 				if( Loggers.nio.isTraceEnabled() )
 					Loggers.nio.trace( "Channel ({}) written #{} bytes to channel (2)", id, written );
+				offset = skipWritten( buffers, offset );
 			}
 
-			this.buffer.clear();
+			if( buffered )
+			{
+				this.buffer.clear();
+				this.machine.countResized( this.size.record( used ) );
+				if( this.buffer.capacity() != this.size.get() )
+					release(); // Resized, the next write leases a new one
+			}
+			this.queued.clear();
+			this.flushPending = false;
+			this.handler.getMachine().countWritten( length );
 		}
 		catch( IOException e )
 		{
 			throw new FatalSocketException( e );
 		}
 	}
+
+	static private int skipWritten( ByteBuffer[] buffers, int offset )
+	{
+		while( offset < buffers.length && !buffers[ offset ].hasRemaining() )
+			offset++;
+		return offset;
+	}
 }
@@ -6,10 +6,19 @@ import solidstack.lang.Assert;
 
 public class SocketPool
 {
+	static private final int IDLE_TIMEOUT = 30000;
+
+	private SocketMachine machine;
 	private Entry pool;
 	private Entry tail;
 	private int pooled;
 	private HashMap<Socket, Entry> all = new HashMap<Socket, Entry>();
+	private Timeout timeout; // Expires the idle sockets, only scheduled when there are pooled sockets
+
+	public SocketPool( SocketMachine machine )
+	{
+		this.machine = machine;
+	}
 
 	synchronized public void add( Socket socket )
 	{
@@ -19,6 +28,8 @@ public class SocketPool
 	synchronized public void remove( Socket socket )
 	{
 		Entry entry = this.all.remove( socket );
+		if( entry == null )
+			return; // Closed before it was added to the pool
 		if( entry.socket != null ) // Which means that the entry is pooled
 			remove( entry );
 	}
@@ -65,6 +76,23 @@ public class SocketPool
 		}
 		this.pool = entry;
 		this.pooled ++;
+
+		if( this.timeout == null )
+			scheduleTimeout( entry.lastPooled + IDLE_TIMEOUT );
+	}
+
+	// Must be called within synchronized
+	private void scheduleTimeout( long when )
+	{
+		this.timeout = new Timeout( when )
+		{
+			@Override
+			protected void fire()
+			{
+				timeout();
+			}
+		};
+		this.machine.addTimeout( this.timeout );
 	}
 
 	synchronized public Socket acquire()
@@ -103,7 +131,7 @@ public class SocketPool
 		return new int[] { this.all.size(), this.pooled };
 	}
 
-	public void timeout()
+	void timeout()
 	{
 		long now = System.currentTimeMillis();
 
@@ -116,7 +144,7 @@ public class SocketPool
 			entry = tail;
 
 			// TODO Maximum number of timeouts per occurrence or use closer thread
-			while( entry != null && entry.lastPooled + 30000 <= now )
+			while( entry != null && entry.lastPooled + IDLE_TIMEOUT <= now )
 				entry = entry.next;
 
 			if( entry != null )
@@ -147,6 +175,12 @@ public class SocketPool
 
 				entry = entry.next;
 			}
+
+			// Schedule the next check for the oldest pooled socket
+			if( this.tail != null )
+				scheduleTimeout( this.tail.lastPooled + IDLE_TIMEOUT );
+			else
+				this.timeout = null;
 		}
 
 		entry = tail;
@@ -0,0 +1,46 @@
+package solidstack.nio;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Counter that is updated by many threads. Each thread adds to one of a number of cells, so that the threads do not all
+ * contend for the same cache line. The value is the sum of the cells.
+ *
+ * @author Ren M. de Bloois
+ */
+class StripedCounter
+{
+	static private final int PADDING = 8; // One cell per 64 byte cache line
+	static private final int CELLS = cells();
+
+	private AtomicLongArray cells = new AtomicLongArray( CELLS * PADDING );
+
+	static private int cells()
+	{
+		int result = 1;
+		while( result < Runtime.getRuntime().availableProcessors() * 2 )
+			result <<= 1;
+		return result;
+	}
+
+	void add( long value )
+	{
+		int hash = (int)Thread.currentThread().getId() * 0x9E3779B9;
+		int index = ( hash >>> 16 & CELLS - 1 ) * PADDING;
+		this.cells.addAndGet( index, value );
+	}
+
+	void increment()
+	{
+		add( 1 );
+	}
+
+	long get()
+	{
+		long result = 0;
+		for( int i = 0; i < CELLS; i++ )
+			result += this.cells.get( i * PADDING );
+		return result;
+	}
+}
@@ -1,12 +1,29 @@
 package solidstack.nio;
 
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
 
 public class Timeout
 {
+	static final int NEW = 0;
+	static final int PENDING = 1; // Waiting to be put in the wheel
+	static final int SCHEDULED = 2;
+	static final int FIRED = 3;
+	static final int CANCELLED = 4;
+
 	private ResponseReader listener;
 	private Socket handler;
 	private long when;
 
+	private AtomicInteger state = new AtomicInteger( NEW );
+
+	// Maintained by the TimingWheel
+	Timeout previous;
+	Timeout next;
+	int level;
+	int index;
+
 	public Timeout( ResponseReader listener, Socket handler, long when )
 	{
 		this.listener = listener;
@@ -14,6 +31,11 @@ public class Timeout
 		this.when = when;
 	}
 
+	protected Timeout( long when )
+	{
+		this.when = when;
+	}
+
 	public long getWhen()
 	{
 		return this.when;
@@ -28,4 +50,24 @@ public class Timeout
 	{
 		return this.handler;
 	}
+
+	int getState()
+	{
+		return this.state.get();
+	}
+
+	boolean compareAndSetState( int expect, int update )
+	{
+		return this.state.compareAndSet( expect, update );
+	}
+
+	/**
+	 * Called by the selector thread when the timeout expires.
+	 *
+	 * @throws IOException Whenever an {@link IOException} occurs.
+	 */
+	protected void fire() throws IOException
+	{
+		this.listener.timeout( this.handler );
+	}
 }
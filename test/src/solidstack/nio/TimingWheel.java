@@ -0,0 +1,268 @@
+package solidstack.nio;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+
+/**
+ * Hierarchical timing wheel with a resolution of 1 millisecond. Schedule and cancel are O(1) and lock free, they only
+ * add the timeout to a concurrent queue. The wheel itself is only touched by the thread that calls
+ * {@link #expire(long, List)} and {@link #nextDelay(long, long)}, which is the selector thread of the
+ * {@link SocketMachine}.
+ *
+ * <p>The wheel has 4 levels of 256 slots, which covers 2^32 milliseconds. Timeouts further away are put in the last
+ * slot of the last level and cascade down from there.</p>
+ *
+ * @author Ren M. de Bloois
+ */
+class TimingWheel
+{
+	static private final int BITS = 8;
+	static private final int SIZE = 1 << BITS;
+	static private final int MASK = SIZE - 1;
+	static private final int LEVELS = 4;
+	static private final long MAX = ( 1L << BITS * LEVELS ) - 1;
+
+	private Timeout[][] wheels = new Timeout[ LEVELS ][ SIZE ];
+	private int[] counts = new int[ LEVELS ];
+	private long time; // The next tick to process
+
+	private ConcurrentLinkedQueue<Timeout> scheduled = new ConcurrentLinkedQueue<Timeout>();
+	private ConcurrentLinkedQueue<Timeout> cancelled = new ConcurrentLinkedQueue<Timeout>();
+
+	// Only written by the selector thread
+	private volatile int added;
+	private volatile int removed;
+	private volatile int fired;
+
+	TimingWheel( long now )
+	{
+		this.time = now;
+	}
+
+	/**
+	 * Schedules the timeout. Can be called from any thread.
+	 *
+	 * @param timeout The timeout to schedule.
+	 */
+	void schedule( Timeout timeout )
+	{
+		if( !timeout.compareAndSetState( Timeout.NEW, Timeout.PENDING ) )
+			throw new IllegalStateException( "Timeout already scheduled" );
+		this.scheduled.add( timeout );
+	}
+
+	/**
+	 * Cancels the timeout. Can be called from any thread.
+	 *
+	 * @param timeout The timeout to cancel.
+	 * @return False if the timeout has already fired or was already cancelled, true otherwise.
+	 */
+	boolean cancel( Timeout timeout )
+	{
+		while( true )
+		{
+			int state = timeout.getState();
+			if( state == Timeout.PENDING )
+			{
+				// Still in the scheduled queue, it will be dropped when the queue is drained
+				if( timeout.compareAndSetState( state, Timeout.CANCELLED ) )
+					return true;
+			}
+			else if( state == Timeout.SCHEDULED )
+			{
+				if( timeout.compareAndSetState( state, Timeout.CANCELLED ) )
+				{
+					this.cancelled.add( timeout );
+					return true;
+				}
+			}
+			else
+				return false;
+		}
+	}
+
+	/**
+	 * Advances the wheel to the given time and collects the timeouts that have expired.
+	 *
+	 * @param now The current time.
+	 * @param expired Receives the expired timeouts.
+	 */
+	void expire( long now, List<Timeout> expired )
+	{
+		drain();
+
+		while( this.time <= now )
+		{
+			int index = (int)this.time & MASK;
+			if( index == 0 )
+				for( int level = 1; level < LEVELS; level++ )
+					if( cascade( level, (int)( this.time >>> BITS * level ) & MASK ) != 0 )
+						break;
+
+			Timeout timeout = this.wheels[ 0 ][ index ];
+			if( timeout != null )
+			{
+				this.wheels[ 0 ][ index ] = null;
+				while( timeout != null )
+				{
+					Timeout next = timeout.next;
+					timeout.next = timeout.previous = null;
+					this.counts[ 0 ]--;
+					if( timeout.compareAndSetState( Timeout.SCHEDULED, Timeout.FIRED ) )
+					{
+						expired.add( timeout );
+						this.fired++;
+					}
+					timeout = next;
+				}
+			}
+
+			this.time++;
+		}
+	}
+
+	/**
+	 * Returns the number of milliseconds until the next timeout needs to be processed.
+	 *
+	 * @param now The current time.
+	 * @param max The maximum number of milliseconds to return.
+	 * @return The number of milliseconds until the next timeout needs to be processed, 0 if it needs to be processed now.
+	 */
+	long nextDelay( long now, long max )
+	{
+		drain();
+
+		int distance = -1;
+		if( this.counts[ 0 ] > 0 )
+		{
+			int index = (int)this.time & MASK;
+			for( int i = 0; i < SIZE; i++ )
+				if( this.wheels[ 0 ][ ( index + i ) & MASK ] != null )
+				{
+					distance = i;
+					break;
+				}
+		}
+
+		// Timeouts in the higher levels cascade when the first level wraps around
+		if( this.counts[ 0 ] < size() )
+		{
+			int wrap = SIZE - (int)this.time & MASK; // 0 when the cascade is due on the next tick
+			if( distance < 0 || wrap < distance )
+				distance = wrap;
+		}
+
+		if( distance < 0 )
+			return max;
+		long delay = this.time + distance - now;
+		if( delay <= 0 )
+			return 0;
+		return delay < max ? delay : max;
+	}
+
+	boolean hasScheduled()
+	{
+		return !this.scheduled.isEmpty();
+	}
+
+	int size()
+	{
+		int result = 0;
+		for( int count : this.counts )
+			result += count;
+		return result;
+	}
+
+	int[] getCounts()
+	{
+		return new int[] { this.added, this.removed, this.fired };
+	}
+
+	// Moves the scheduled and cancelled timeouts from the queues into the wheel
+	private void drain()
+	{
+		Timeout timeout;
+		while( ( timeout = this.scheduled.poll() ) != null )
+		{
+			this.added++;
+			if( timeout.compareAndSetState( Timeout.PENDING, Timeout.SCHEDULED ) )
+				insert( timeout );
+			else
+				this.removed++; // Cancelled before it got in the wheel
+		}
+		while( ( timeout = this.cancelled.poll() ) != null )
+		{
+			unlink( timeout );
+			this.removed++;
+		}
+	}
+
+	private void insert( Timeout timeout )
+	{
+		long when = timeout.getWhen();
+		long delta = when - this.time;
+		int level;
+		if( delta < 0 )
+		{
+			level = 0;
+			when = this.time;
+		}
+		else if( delta > MAX )
+		{
+			level = LEVELS - 1;
+			when = this.time + MAX;
+		}
+		else
+		{
+			level = 0;
+			while( delta >= SIZE )
+			{
+				delta >>>= BITS;
+				level++;
+			}
+		}
+
+		int index = (int)( when >>> BITS * level ) & MASK;
+		Timeout head = this.wheels[ level ][ index ];
+		timeout.level = level;
+		timeout.index = index;
+		timeout.previous = null;
+		timeout.next = head;
+		if( head != null )
+			head.previous = timeout;
+		this.wheels[ level ][ index ] = timeout;
+		this.counts[ level ]++;
+	}
+
+	private void unlink( Timeout timeout )
+	{
+		if( timeout.previous != null )
+			timeout.previous.next = timeout.next;
+		else
+		{
+			if( this.wheels[ timeout.level ][ timeout.index ] != timeout )
+				return; // Not in the wheel (anymore)
+			this.wheels[ timeout.level ][ timeout.index ] = timeout.next;
+		}
+		if( timeout.next != null )
+			timeout.next.previous = timeout.previous;
+		timeout.next = timeout.previous = null;
+		this.counts[ timeout.level ]--;
+	}
+
+	// Redistributes the timeouts of a slot over the lower levels, returns the index
+	private int cascade( int level, int index )
+	{
+		Timeout timeout = this.wheels[ level ][ index ];
+		this.wheels[ level ][ index ] = null;
+		while( timeout != null )
+		{
+			Timeout next = timeout.next;
+			this.counts[ level ]--;
+			insert( timeout );
+			timeout = next;
+		}
+		return index;
+	}
+}
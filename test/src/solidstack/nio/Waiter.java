@@ -0,0 +1,55 @@
+package solidstack.nio;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * Hands the signal of the selector thread over to a stream thread that waits for its channel, without a lock. The
+ * stream thread calls {@link #prepare()} before it registers its interest with the selector, so that a signal that
+ * comes before {@link #await()} is not lost: it sticks till the await. A signal before the prepare is lost, so after
+ * the prepare the stream thread checks again whether it needs to wait at all, and calls {@link #cancel()} if not.
+ *
+ * @author Ren M. de Bloois
+ */
+class Waiter
+{
+	static private final int IDLE = 0;
+	static private final int WAITING = 1;
+	static private final int SIGNALLED = 2;
+
+	private AtomicInteger state = new AtomicInteger( IDLE );
+	private volatile Thread thread;
+
+	void prepare()
+	{
+		this.thread = Thread.currentThread();
+		this.state.set( WAITING );
+	}
+
+	void cancel()
+	{
+		this.state.set( IDLE );
+	}
+
+	void await() throws InterruptedException
+	{
+		while( this.state.get() == WAITING )
+		{
+			LockSupport.park( this );
+			if( Thread.interrupted() )
+			{
+				this.state.set( IDLE );
+				throw new InterruptedException();
+			}
+		}
+		this.state.set( IDLE );
+	}
+
+	// Can be called from any thread, does nothing when no thread is waiting or preparing to wait
+	void signal()
+	{
+		if( this.state.get() == WAITING && this.state.compareAndSet( WAITING, SIGNALLED ) )
+			LockSupport.unpark( this.thread );
+	}
+}
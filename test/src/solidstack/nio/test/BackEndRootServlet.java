@@ -22,8 +22,7 @@ public class BackEndRootServlet implements Servlet
 					context.getResponse().setContentType( "text/html", null );
 					ResponseWriter writer = context.getResponse().getWriter();
 					writer.write( "Hello World!\n" );
-					context.getResponse().finish();
-					// FIXME Need to release the socket
+					context.getResponse().finish(); // Also releases the socket
 				}
 				catch( Exception e )
 				{
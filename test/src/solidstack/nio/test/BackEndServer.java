@@ -17,6 +17,7 @@ public class BackEndServer
 		System.setProperty( "logback.configurationFile", "solidstack/nio/test/logback-backend.xml" );
 
 		SocketMachine machine = new SocketMachine();
+		machine.registerMBean();
 
 		Server server = new Server( machine, 8001 );
 		server.setApplication( new BackEndServerApplication() );
@@ -0,0 +1,105 @@
+package solidstack.nio.test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import solidstack.nio.ResponseReader;
+import solidstack.nio.ServerSocket;
+import solidstack.nio.Socket;
+import solidstack.nio.SocketMachine;
+import solidstack.nio.SocketMachineMetrics;
+
+
+/**
+ * Opens a lot of keep-alive connections that each do one request and then stay idle, and reports the memory that the
+ * server needs for each idle connection.
+ *
+ * <p>Arguments: [connections]</p>
+ */
+public class IdleConnectionsBenchmark
+{
+	static private final int PORT = 8005;
+	static private final byte[] REQUEST = "request\n".getBytes();
+	static private final byte[] RESPONSE = "OK\n".getBytes();
+
+	static public void main( String[] args ) throws IOException
+	{
+		int connections = args.length > 0 ? Integer.parseInt( args[ 0 ] ) : 10000;
+
+		SocketMachine machine = new SocketMachine();
+		machine.start();
+
+		ServerSocket server = machine.listen( new InetSocketAddress( PORT ), 1000 );
+		server.setMaxConnections( connections );
+		server.setReader( new LineEchoReader() );
+
+		long heapBefore = usedHeap();
+
+		SocketChannel[] channels = new SocketChannel[ connections ];
+		ByteBuffer response = ByteBuffer.allocate( RESPONSE.length );
+		for( int i = 0; i < connections; i++ )
+		{
+			channels[ i ] = SocketChannel.open( new InetSocketAddress( "localhost", PORT ) );
+			channels[ i ].write( ByteBuffer.wrap( REQUEST ) );
+			response.clear();
+			while( response.hasRemaining() )
+				if( channels[ i ].read( response ) < 0 )
+					throw new IllegalStateException( "Connection closed by the server" );
+		}
+
+		long heapAfter = usedHeap();
+		SocketMachineMetrics metrics = machine.getMetrics();
+
+		// The client channels are in the same heap, this is an upper bound for the server
+		System.out.println( "Idle connections: " + connections );
+		System.out.println( "Heap per connection (client and server): " + ( heapAfter - heapBefore ) / connections + " bytes" );
+		System.out.println( "Buffers leased: " + metrics.getBuffersLeased() + ", buffer memory: " + metrics.getBufferMemory() / 1024 + " KB" );
+
+		machine.shutdown();
+		System.exit( 0 );
+	}
+
+	static private long usedHeap()
+	{
+		Runtime runtime = Runtime.getRuntime();
+		for( int i = 0; i < 3; i++ )
+		{
+			System.gc();
+			try
+			{
+				Thread.sleep( 100 );
+			}
+			catch( InterruptedException e )
+			{
+				throw new IllegalStateException( e );
+			}
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	static private class LineEchoReader implements ResponseReader
+	{
+		public void incoming( Socket socket ) throws IOException
+		{
+			InputStream in = socket.getInputStream();
+			int b = in.read();
+			while( b >= 0 && b != '\n' )
+				b = in.read();
+			if( b < 0 )
+				return;
+
+			OutputStream out = socket.getOutputStream();
+			out.write( RESPONSE );
+			out.flush();
+		}
+
+		public void timeout( Socket socket ) throws IOException
+		{
+			socket.timeout();
+		}
+	}
+}
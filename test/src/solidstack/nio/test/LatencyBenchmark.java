@@ -0,0 +1,96 @@
+package solidstack.nio.test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+
+import solidstack.nio.ResponseReader;
+import solidstack.nio.ServerSocket;
+import solidstack.nio.Socket;
+import solidstack.nio.SocketMachine;
+
+
+/**
+ * Measures the round trip latency of small requests over loopback, with a blocking client and the socket machine
+ * echoing on the server side. Run it once with "park" and once with "spin" to compare with busy polling.
+ *
+ * <p>Arguments: [park|spin] [requests] [spin microseconds]</p>
+ */
+public class LatencyBenchmark
+{
+	static private final int PORT = 8004;
+	static private final int WARMUP = 10000;
+
+	static public void main( String[] args ) throws IOException
+	{
+		String mode = args.length > 0 ? args[ 0 ] : "park";
+		int requests = args.length > 1 ? Integer.parseInt( args[ 1 ] ) : 100000;
+		int spin = args.length > 2 ? Integer.parseInt( args[ 2 ] ) : 50;
+
+		SocketMachine machine = new SocketMachine();
+		if( mode.equals( "spin" ) )
+			machine.setBusyPoll( spin );
+		machine.start();
+
+		ServerSocket server = machine.listen( new InetSocketAddress( PORT ) );
+		server.setMaxConnections( 1 );
+		server.setReader( new EchoReader() );
+
+		java.net.Socket client = new java.net.Socket( "localhost", PORT );
+		client.setTcpNoDelay( true );
+		InputStream in = client.getInputStream();
+		OutputStream out = client.getOutputStream();
+
+		for( int i = 0; i < WARMUP; i++ )
+			roundTrip( in, out );
+
+		long[] times = new long[ requests ];
+		for( int i = 0; i < requests; i++ )
+			times[ i ] = roundTrip( in, out );
+		client.close();
+
+		Arrays.sort( times );
+		System.out.println( "Mode: " + mode + ( mode.equals( "spin" ) ? " (" + spin + " us)" : "" ) + ", requests: " + requests );
+		System.out.println( "p50: " + times[ requests / 2 ] / 1000 + " us" );
+		System.out.println( "p99: " + times[ (int)( requests * 0.99 ) ] / 1000 + " us" );
+		System.out.println( "p99.9: " + times[ (int)( requests * 0.999 ) ] / 1000 + " us" );
+		System.out.println( machine.getMetrics() );
+
+		machine.shutdown();
+		System.exit( 0 );
+	}
+
+	static private long roundTrip( InputStream in, OutputStream out ) throws IOException
+	{
+		long start = System.nanoTime();
+		out.write( 'x' );
+		out.flush();
+		if( in.read() < 0 )
+			throw new IllegalStateException( "Connection closed by the server" );
+		return System.nanoTime() - start;
+	}
+
+	// Echoes the bytes while they keep coming, so that the task waits in the input stream between 2 requests
+	static private class EchoReader implements ResponseReader
+	{
+		public void incoming( Socket socket ) throws IOException
+		{
+			InputStream in = socket.getInputStream();
+			OutputStream out = socket.getOutputStream();
+			int b = in.read();
+			while( b >= 0 )
+			{
+				out.write( b );
+				out.flush();
+				b = in.read();
+			}
+		}
+
+		public void timeout( Socket socket ) throws IOException
+		{
+			socket.timeout();
+		}
+	}
+}
@@ -11,9 +11,11 @@ import java.util.concurrent.atomic.AtomicBoolean;
 import solidstack.httpclient.Request;
 import solidstack.httpclient.Response;
 import solidstack.httpclient.ResponseProcessor;
+import solidstack.httpclient.nio.BodyInputStream;
 import solidstack.httpclient.nio.Client;
 import solidstack.httpserver.RequestContext;
 import solidstack.httpserver.Servlet;
+import solidstack.httpserver.nio.NioResponse;
 import solidstack.io.FatalIOException;
 import solidstack.lang.Assert;
 import solidstack.lang.SystemException;
@@ -74,16 +76,25 @@ public class MiddleRootServlet implements Servlet
 //				if( Dispatcher.debug )
 //					System.out.println();
 
-					OutputStream out = r.getOutputStream();
 					InputStream in = response.getInputStream();
-					byte[] buffer = new byte[ 8192 ];
 					try
 					{
-						int len = in.read( buffer );
-						while( len >= 0 )
+						if( in instanceof BodyInputStream && r instanceof NioResponse )
 						{
-							out.write( buffer, 0, len );
-							len = in.read( buffer );
+							// Hand the buffers of the back end socket to the client socket
+							BodyInputStream body = (BodyInputStream)in;
+							body.transferTo( ( (NioResponse)r ).commit( body.getRemaining() ) );
+						}
+						else if( in != null )
+						{
+							OutputStream out = r.getOutputStream();
+							byte[] buffer = new byte[ 65536 ]; // Large reads go directly from the channel into the array
+							int len = in.read( buffer );
+							while( len >= 0 )
+							{
+								out.write( buffer, 0, len );
+								len = in.read( buffer );
+							}
 						}
 					}
 					catch( IOException e )
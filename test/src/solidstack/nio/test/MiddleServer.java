@@ -4,6 +4,7 @@ import java.io.IOException;
 
 import solidstack.httpserver.nio.Server;
 import solidstack.nio.SocketMachine;
+import solidstack.nio.SocketMachineGroup;
 
 
 public class MiddleServer
@@ -18,11 +19,14 @@ public class MiddleServer
 	{
 		System.setProperty( "logback.configurationFile", "solidstack/nio/test/logback-middle.xml" );
 
-		dispatcher = new SocketMachine();
+		SocketMachineGroup group = new SocketMachineGroup();
+		dispatcher = group.getMachine( 0 );
+		group.registerMBeans();
 
 		Server server = new Server( dispatcher, 8002 );
 		server.setApplication( new MiddleServerApplication() );
+		server.setAsyncTimeoutStatus( 504, "Gateway Timeout" );
 
-		dispatcher.run();
+		group.run();
 	}
 }
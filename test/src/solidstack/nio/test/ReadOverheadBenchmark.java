@@ -0,0 +1,90 @@
+package solidstack.nio.test;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+
+import solidstack.nio.ResponseReader;
+import solidstack.nio.ServerSocket;
+import solidstack.nio.Socket;
+import solidstack.nio.SocketMachine;
+
+
+/**
+ * Measures the time of a single byte read() from the socket input stream, including the reads from the channel. To
+ * compare with another version of the stream, run it against a build of that version.
+ *
+ * <p>Arguments: [megabytes] [rounds]</p>
+ */
+public class ReadOverheadBenchmark
+{
+	static private final int PORT = 8006;
+
+	static public void main( String[] args ) throws IOException
+	{
+		int megabytes = args.length > 0 ? Integer.parseInt( args[ 0 ] ) : 64;
+		int rounds = args.length > 1 ? Integer.parseInt( args[ 1 ] ) : 5;
+		long count = megabytes * 1024L * 1024L;
+
+		SocketMachine machine = new SocketMachine();
+		machine.start();
+
+		ServerSocket server = machine.listen( new InetSocketAddress( PORT ) );
+		server.setMaxConnections( 1 );
+		server.setReader( new CountingReader( count ) );
+
+		java.net.Socket client = new java.net.Socket( "localhost", PORT );
+		OutputStream out = client.getOutputStream();
+		DataInputStream in = new DataInputStream( client.getInputStream() );
+		byte[] data = new byte[ 65536 ];
+
+		System.out.println( "Megabytes: " + megabytes );
+		for( int round = 0; round < rounds; round++ )
+		{
+			for( long sent = 0; sent < count; sent += data.length )
+				out.write( data );
+			out.flush();
+			long nanos = in.readLong();
+			System.out.println( "Round " + round + ": " + String.format( "%.2f", (double)nanos / count ) + " ns/read" );
+		}
+
+		machine.shutdown();
+		client.close();
+		System.exit( 0 );
+	}
+
+	// Reads the given number of bytes one by one and answers with the number of nanoseconds it took
+	static private class CountingReader implements ResponseReader
+	{
+		private long count;
+
+		CountingReader( long count )
+		{
+			this.count = count;
+		}
+
+		public void incoming( Socket socket ) throws IOException
+		{
+			InputStream in = socket.getInputStream();
+			long start = System.nanoTime();
+			long result = 0;
+			for( long i = 0; i < this.count; i++ )
+				result += in.read();
+			long nanos = System.nanoTime() - start;
+			if( result < 0 )
+				return; // Closed
+
+			DataOutputStream out = new DataOutputStream( socket.getOutputStream() );
+			out.writeLong( nanos );
+			out.flush();
+		}
+
+		public void timeout( Socket socket ) throws IOException
+		{
+			socket.timeout();
+		}
+	}
+}
@@ -0,0 +1,173 @@
+package solidstack.nio.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+import solidstack.httpserver.HttpHeaderTokenizer;
+import solidstack.httpserver.Request;
+import solidstack.httpserver.Token;
+import solidstack.httpserver.nio.NioRequest;
+import solidstack.httpserver.nio.ParsedRequest;
+import solidstack.httpserver.nio.RequestParser;
+
+
+/**
+ * Compares parsing typical requests of 300 to 800 bytes with the {@link HttpHeaderTokenizer}, like the server used to
+ * do, with the {@link RequestParser}. Shows the time and the bytes allocated per request. With "parser" only the
+ * parser runs, with "request" the parsed request is also turned into a {@link Request} like the server does.
+ *
+ * <p>Arguments: [tokenizer|parser|request] [iterations]</p>
+ */
+public class RequestParserBenchmark
+{
+	static private final String[] REQUESTS = {
+		"GET /shop/products/list?category=books&sort=price&page=2 HTTP/1.1\r\n"
+			+ "Host: www.example.com\r\n"
+			+ "User-Agent: Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/118.0 Safari/537.36\r\n"
+			+ "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n"
+			+ "Accept-Language: en-US,en;q=0.5\r\n"
+			+ "Accept-Encoding: gzip, deflate\r\n"
+			+ "Connection: keep-alive\r\n"
+			+ "Cookie: session=8f2a9c0d4e7b1a3f\r\n"
+			+ "\r\n",
+		"GET /static/css/site.css HTTP/1.1\r\n"
+			+ "Host: www.example.com\r\n"
+			+ "User-Agent: curl/8.4.0\r\n"
+			+ "Accept: text/css,*/*;q=0.1\r\n"
+			+ "Referer: http://www.example.com/shop/products/list?category=books\r\n"
+			+ "If-Modified-Since: Tue, 10 Oct 2023 08:12:31 GMT\r\n"
+			+ "If-None-Match: \"5f3e-60774f2b1e5c0\"\r\n"
+			+ "Cache-Control: max-age=0\r\n"
+			+ "\r\n",
+		"POST /shop/cart/add HTTP/1.1\r\n"
+			+ "Host: www.example.com\r\n"
+			+ "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:109.0) Gecko/20100101 Firefox/119.0\r\n"
+			+ "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,image/avif,image/webp,*/*;q=0.8\r\n"
+			+ "Accept-Language: nl,en-US;q=0.7,en;q=0.3\r\n"
+			+ "Accept-Encoding: gzip, deflate, br\r\n"
+			+ "Content-Type: application/x-www-form-urlencoded\r\n"
+			+ "Content-Length: 0\r\n"
+			+ "Origin: http://www.example.com\r\n"
+			+ "Connection: keep-alive\r\n"
+			+ "Referer: http://www.example.com/shop/products/item?id=1234\r\n"
+			+ "Cookie: session=8f2a9c0d4e7b1a3f\r\n"
+			+ "Upgrade-Insecure-Requests: 1\r\n"
+			+ "\r\n"
+	};
+
+	static public void main( String[] args ) throws IOException
+	{
+		String mode = args.length > 0 ? args[ 0 ] : "parser";
+		int iterations = args.length > 1 ? Integer.parseInt( args[ 1 ] ) : 1000000;
+
+		byte[][] requests = new byte[ REQUESTS.length ][];
+		ByteBuffer[] buffers = new ByteBuffer[ REQUESTS.length ];
+		for( int i = 0; i < REQUESTS.length; i++ )
+		{
+			requests[ i ] = REQUESTS[ i ].getBytes( "ISO-8859-1" );
+			buffers[ i ] = ByteBuffer.allocateDirect( requests[ i ].length );
+			buffers[ i ].put( requests[ i ] );
+			buffers[ i ].flip();
+			System.out.println( "Request " + i + ": " + requests[ i ].length + " bytes" );
+		}
+
+		RequestParser parser = new RequestParser();
+		long check = 0;
+		for( int round = 0; round < 5; round++ )
+		{
+			long allocated = allocatedBytes();
+			long start = System.nanoTime();
+			for( int i = 0; i < iterations; i++ )
+			{
+				int r = i % REQUESTS.length;
+				if( mode.equals( "tokenizer" ) )
+					check += tokenize( requests[ r ] ).hashCode();
+				else
+				{
+					ByteBuffer buffer = buffers[ r ];
+					buffer.position( 0 );
+					parser.reset();
+					if( !parser.parse( buffer ) )
+						throw new IllegalStateException( "Incomplete request" );
+					if( mode.equals( "request" ) )
+						check += toRequest( parser.getRequest() ).hashCode();
+					else
+						check += parser.getRequest().getHeaderCount();
+				}
+			}
+			long nanos = System.nanoTime() - start;
+			allocated = allocatedBytes() - allocated;
+			System.out.println( "Mode: " + mode + ", round " + round + ": " + nanos / iterations + " ns/request"
+					+ ( allocated >= 0 ? ", " + allocated / iterations + " bytes/request" : "" ) );
+		}
+		System.out.println( "(" + check + ")" );
+	}
+
+	// The way the server parsed requests before the RequestParser
+	static private Request tokenize( byte[] bytes )
+	{
+		Request request = new Request();
+		HttpHeaderTokenizer tokenizer = new HttpHeaderTokenizer( new ByteArrayInputStream( bytes ) );
+
+		String line = tokenizer.getLine();
+		String[] parts = line.split( "[ \t]+" );
+		request.setMethod( parts[ 0 ] );
+		String url = parts[ 1 ];
+		String parameters = null;
+		int pos = url.indexOf( '?' );
+		if( pos >= 0 )
+		{
+			parameters = url.substring( pos + 1 );
+			url = url.substring( 0, pos );
+			for( String par : parameters.split( "&" ) )
+			{
+				pos = par.indexOf( '=' );
+				if( pos >= 0 )
+					request.addParameter( par.substring( 0, pos ), par.substring( pos + 1 ) );
+				else
+					request.addParameter( par, null );
+			}
+		}
+		if( url.endsWith( "/" ) )
+			url = url.substring( 0, url.length() - 1 );
+		request.setUrl( url );
+		request.setQuery( parameters );
+
+		Token field = tokenizer.getField();
+		while( !field.isEndOfInput() )
+		{
+			Token value = tokenizer.getValue();
+			request.addHeader( field.getValue(), value.getValue() );
+			field = tokenizer.getField();
+		}
+		return request;
+	}
+
+	// The way the server turns the parsed request into a Request
+	static private Request toRequest( ParsedRequest head )
+	{
+		NioRequest request = new NioRequest();
+		request.setMethod( head.getMethod() );
+		String url = head.getPath();
+		String parameters = head.getQuery();
+		request.setParameters( parameters );
+		if( url.endsWith( "/" ) )
+			url = url.substring( 0, url.length() - 1 );
+		request.setUrl( url );
+		request.setQuery( parameters );
+		for( int i = 0; i < head.getHeaderCount(); i++ )
+			request.addHeader( head.getHeaderName( i ), head.getHeaderValue( i ) );
+		return request;
+	}
+
+	// The bytes allocated by the current thread, -1 if the JVM does not tell
+	static private long allocatedBytes()
+	{
+		java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if( threads instanceof com.sun.management.ThreadMXBean )
+			return ( (com.sun.management.ThreadMXBean)threads ).getThreadAllocatedBytes( Thread.currentThread().getId() );
+		return -1;
+	}
+}
@@ -0,0 +1,196 @@
+package solidstack.nio.test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import solidstack.nio.ResponseReader;
+import solidstack.nio.ServerSocket;
+import solidstack.nio.Socket;
+import solidstack.nio.SocketHandler;
+import solidstack.nio.SocketMachine;
+
+
+/**
+ * Opens a lot of connections that send their requests very slowly, so that every connection keeps a task blocked in
+ * the socket input stream. Run it once with "pool" and once with "virtual" (needs Java 21) to compare the thread pool
+ * with virtual threads. With "event" the server uses a {@link SocketHandler}, which needs no threads at all.
+ *
+ * <p>Arguments: [pool|virtual|event] [connections] [rounds]</p>
+ *
+ * <p>The clients run in the same process, so each connection takes 2 file descriptors. The default of 10000
+ * connections needs a limit (ulimit -n) above 20000.</p>
+ */
+public class SlowConnectionsBenchmark
+{
+	static private final int PORT = 8003;
+	static private final byte[] REQUEST = "slow request\n".getBytes();
+	static private final byte[] RESPONSE = "OK\n".getBytes();
+	static private final int INTERVAL = 100; // Milliseconds between 2 bytes of a request
+
+	static public void main( String[] args ) throws IOException
+	{
+		String mode = args.length > 0 ? args[ 0 ] : "pool";
+		int connections = args.length > 1 ? Integer.parseInt( args[ 1 ] ) : 10000;
+		int rounds = args.length > 2 ? Integer.parseInt( args[ 2 ] ) : 3;
+
+		ExecutorService executor = mode.equals( "virtual" ) ? SocketMachine.newVirtualThreadExecutor() : Executors.newCachedThreadPool();
+		SocketMachine machine = new SocketMachine( executor );
+		machine.start();
+
+		ServerSocket server = machine.listen( new InetSocketAddress( PORT ), 1000 );
+		server.setMaxConnections( connections );
+		if( mode.equals( "event" ) )
+			server.setHandler( new LineEchoHandler() );
+		else
+			server.setReader( new LineEchoReader() );
+
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		threads.resetPeakThreadCount();
+		long start = System.currentTimeMillis();
+
+		runClients( connections, rounds );
+
+		long elapsed = System.currentTimeMillis() - start;
+		Runtime runtime = Runtime.getRuntime();
+		System.out.println( "Mode: " + mode + ", connections: " + connections + ", rounds: " + rounds );
+		System.out.println( "Elapsed: " + elapsed + " ms (ideal: " + (long)rounds * REQUEST.length * INTERVAL + " ms)" );
+		System.out.println( "Peak threads: " + threads.getPeakThreadCount() );
+		System.out.println( "Heap used: " + ( runtime.totalMemory() - runtime.freeMemory() ) / 1024 / 1024 + " MB" );
+
+		machine.shutdown();
+		System.exit( 0 );
+	}
+
+	// One thread drives all the client connections
+	static private void runClients( int connections, int rounds ) throws IOException
+	{
+		Selector selector = Selector.open();
+		Connection[] all = new Connection[ connections ];
+		for( int i = 0; i < connections; i++ )
+		{
+			SocketChannel channel = SocketChannel.open( new InetSocketAddress( "localhost", PORT ) );
+			channel.configureBlocking( false );
+			all[ i ] = new Connection( channel );
+			channel.register( selector, SelectionKey.OP_READ, all[ i ] );
+		}
+
+		int done = 0;
+		ByteBuffer buffer = ByteBuffer.allocate( 64 );
+		long next = System.currentTimeMillis();
+		while( done < connections )
+		{
+			long now = System.currentTimeMillis();
+			if( now >= next )
+			{
+				for( Connection connection : all )
+					connection.sendByte();
+				next += INTERVAL;
+			}
+
+			long wait = next - System.currentTimeMillis();
+			if( wait > 0 )
+				selector.select( wait );
+			else
+				selector.selectNow();
+
+			for( Iterator<SelectionKey> i = selector.selectedKeys().iterator(); i.hasNext(); )
+			{
+				SelectionKey key = i.next();
+				i.remove();
+				Connection connection = (Connection)key.attachment();
+				buffer.clear();
+				int read = connection.channel.read( buffer );
+				if( read < 0 )
+					throw new IllegalStateException( "Connection closed by the server" );
+				for( int j = 0; j < read; j++ )
+					if( buffer.get( j ) == '\n' )
+						if( ++connection.round >= rounds )
+						{
+							connection.channel.close();
+							done++;
+						}
+						else
+							connection.position = 0;
+			}
+		}
+		selector.close();
+	}
+
+	static private class Connection
+	{
+		SocketChannel channel;
+		int position;
+		int round;
+		ByteBuffer one = ByteBuffer.allocate( 1 );
+
+		Connection( SocketChannel channel )
+		{
+			this.channel = channel;
+		}
+
+		void sendByte() throws IOException
+		{
+			if( this.position >= REQUEST.length || !this.channel.isOpen() )
+				return; // Waiting for the response
+			this.one.clear();
+			this.one.put( REQUEST[ this.position++ ] );
+			this.one.flip();
+			this.channel.write( this.one );
+		}
+	}
+
+	// Reads a line, byte by byte, and answers it
+	static private class LineEchoReader implements ResponseReader
+	{
+		public void incoming( Socket socket ) throws IOException
+		{
+			InputStream in = socket.getInputStream();
+			int b = in.read();
+			while( b >= 0 && b != '\n' )
+				b = in.read();
+			if( b < 0 )
+				return;
+
+			OutputStream out = socket.getOutputStream();
+			out.write( RESPONSE );
+			out.flush();
+		}
+
+		public void timeout( Socket socket ) throws IOException
+		{
+			socket.timeout();
+		}
+	}
+
+	// Same as the LineEchoReader, without blocking
+	static private class LineEchoHandler implements SocketHandler
+	{
+		public void onReadable( Socket socket, ByteBuffer buffer ) throws IOException
+		{
+			while( buffer.hasRemaining() )
+				if( buffer.get() == '\n' )
+					socket.write( ByteBuffer.wrap( RESPONSE ) );
+		}
+
+		public void onWritable( Socket socket )
+		{
+			// Nothing to do
+		}
+
+		public void onClosed( Socket socket )
+		{
+			// Nothing to do
+		}
+	}
+}